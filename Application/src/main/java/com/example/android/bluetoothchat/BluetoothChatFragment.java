@@ -24,33 +24,49 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
+import android.os.Trace;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
-import android.widget.ListView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.android.common.logger.Log;
+import com.example.android.ffs.FFSCodec;
+import com.example.android.ffs.FFSKey;
+import com.example.android.ffs.FFSMetrics;
 import com.example.android.ffs.FFSPeggy;
+import com.example.android.ffs.FFSStepListener;
+import com.example.android.ffs.FFSTrace;
 import com.example.android.ffs.FFSVictor;
-
+import com.example.android.transport.WireStats;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.Collections;
+import java.util.Locale;
 
 /**
  * This fragment controls Bluetooth to communicate with other devices.
@@ -64,19 +80,45 @@ public class BluetoothChatFragment extends Fragment {
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     private static final int REQUEST_ENABLE_BT = 3;
 
+    // Verifier station parameters, k has to match the provers' initFFS()
+    private static final int VERIFIER_K = 8;
+    private static final int VERIFIER_ROUNDS = 10;
+    private static final int VERIFIER_MAX_SESSIONS = 4;
+
+    // Where "Show metrics" saves them, in the app's files directory
+    private static final String METRICS_FILE = "metrics.json";
+
+    // Where "Save trace" saves the spans recorded, see FFSTrace
+    private static final String TRACE_FILE = "trace.json";
+
+    /**
+     * Shows spans in system traces too, next to what the system was doing.
+     */
+    private static final FFSTrace.Sections SYSTEM_TRACE = new FFSTrace.Sections() {
+        @Override
+        public void beginSection(String name) {
+            Trace.beginSection(name);
+        }
+
+        @Override
+        public void endSection() {
+            Trace.endSection();
+        }
+    };
+
     // Layout Views
-    private ListView mConversationView;
+    private RecyclerView mConversationView;
     private Button mSendButton;
 
     /**
      * Name of the connected device
      */
-    private String mConnectedDeviceName = null;
+    private volatile String mConnectedDeviceName = null;
 
     /**
-     * Array adapter for the conversation thread
+     * Bounded adapter for the conversation thread
      */
-    private ArrayAdapter<String> mConversationArrayAdapter;
+    private TranscriptAdapter mTranscript;
 
     /**
      * String buffer for outgoing messages
@@ -93,10 +135,17 @@ public class BluetoothChatFragment extends Fragment {
      */
     private BluetoothChatService mChatService = null;
 
+    /**
+     * Worker thread running the FFS protocol, so decoding and the arithmetic of each
+     * step stay off the main thread. The FFS data below is only touched on this thread.
+     */
+    private HandlerThread mProtocolThread;
+    private Handler mProtocolHandler;
+
     /**
      * FFS data
      */
-    private boolean isPeggy = false;
+    private volatile boolean isPeggy = false;
     private FFSPeggy peggy;
     private FFSVictor victor;
 
@@ -122,6 +171,13 @@ public class BluetoothChatFragment extends Fragment {
             Toast.makeText(activity, "Bluetooth is not available", Toast.LENGTH_LONG).show();
             activity.finish();
         }
+
+        FFSTrace.setSections(SYSTEM_TRACE);
+        FFSTrace.setEnabled(true);
+
+        mProtocolThread = new HandlerThread("FFSProtocol", Process.THREAD_PRIORITY_BACKGROUND);
+        mProtocolThread.start();
+        mProtocolHandler = new Handler(mProtocolThread.getLooper(), mProtocolCallback);
     }
 
     @Override
@@ -147,6 +203,7 @@ public class BluetoothChatFragment extends Fragment {
         if (mChatService != null) {
             mChatService.stop();
         }
+        mProtocolThread.quitSafely();
     }
 
     @Override
@@ -181,24 +238,20 @@ public class BluetoothChatFragment extends Fragment {
         SecureRandom random = new SecureRandom();
 
 //        BigInteger n = new BigInteger("3501123401"); // 56467 * 62003
-//        mConversationArrayAdapter.add("Me:  N = " + n);
+//        addLine("Me:  N = " + n);
 
         if (ffsS.isEmpty()) {
-            BigInteger p = BigInteger.probablePrime(l, random);
-            BigInteger q = BigInteger.probablePrime(l, random);
-            ffsN = p.multiply(q);
-
-//            mConversationArrayAdapter.add("FFS:  " + p);
-//            mConversationArrayAdapter.add("FFS:  " + q);
-//            mConversationArrayAdapter.add("FFS:  " + n);
-
-            while (ffsS.size() < k)
-            {
-                BigInteger bi = new BigInteger(2 * l, random);
-                if (bi.gcd(ffsN).equals(new BigInteger("1"))) {
-                    ffsS.add(bi);
-                }
+            long t = System.nanoTime();
+            FFSKey key;
+            FFSTrace.begin("keygen");
+            try {
+                key = FFSKey.generate(l, k, random);
+            } finally {
+                FFSTrace.end();
             }
+            FFSMetrics.get().lap(FFSMetrics.Phase.KEYGEN, t);
+            ffsN = key.getN();
+            ffsS = key.getS();
         }
 
         byte[] peggySeed = SecureRandom.getSeed(l);
@@ -206,8 +259,20 @@ public class BluetoothChatFragment extends Fragment {
 
         peggy = new FFSPeggy(ffsN, ffsS, l, k, peggySeed);
         victor = new FFSVictor(ffsN, k, victorSeed);
+        peggy.setListener(mStepTracer);
+        victor.setListener(mStepTracer);
     }
 
+    /**
+     * Logs every protocol step, which ends up in the trace file as well.
+     */
+    private final FFSStepListener mStepTracer = new FFSStepListener() {
+        @Override
+        public void onStep(String party, int step) {
+            Log.v(party, "step %d", step);
+        }
+    };
+
     /**
      * Set up the UI and background operations for chat.
      */
@@ -219,9 +284,12 @@ public class BluetoothChatFragment extends Fragment {
         if (activity == null) {
             return;
         }
-        mConversationArrayAdapter = new ArrayAdapter<>(activity, R.layout.message);
+        mTranscript = new TranscriptAdapter();
 
-        mConversationView.setAdapter(mConversationArrayAdapter);
+        LinearLayoutManager layout = new LinearLayoutManager(activity);
+        layout.setStackFromEnd(true);
+        mConversationView.setLayoutManager(layout);
+        mConversationView.setAdapter(mTranscript);
 
         // Initialize the send button with a listener that for click events
         mSendButton.setOnClickListener(new View.OnClickListener() {
@@ -233,68 +301,95 @@ public class BluetoothChatFragment extends Fragment {
 //                    String message = textView.getText().toString();
 //                    sendMessage(message);
 
-                    if (isPeggy) {
-                        switch (peggy.getCurrentStep()) {
-                            case 0: {
-                                ffsNV = peggy.getV();
-                                sendBigIntegerArray(ffsNV);
-                                break;
-                            }
-                            case 1: {
-                                ffsX = peggy.getX();
-                                sendBigIntegerArray(new ArrayList<>(Collections.singletonList(ffsX)));
-                                break;
-                            }
-                            case 2: {
-                                if (victor.getCurrentStep() == 2) {
-                                    ffsY = peggy.getY(ffsA);
-                                    sendBigIntegerArray(new ArrayList<>(Collections.singletonList(ffsY)));
-                                } else {
-                                    mConversationArrayAdapter.add("Me: Waiting for Victor...");
-                                }
-                                break;
-                            }
-                        }
-                    } else {
-                        switch (victor.getCurrentStep()) {
-                            case 0: {
-                                if (peggy.getCurrentStep() == 2) {
-                                    victor.receiveV(ffsNV);
-                                    ffsA = victor.getA(ffsX);
-                                    sendBooleanArray(ffsA);
-                                } else {
-                                    mConversationArrayAdapter.add("Me: Waiting for Peggy...");
-                                }
-                                break;
-                            }
-                            case 1: {
-                                break;
-                            }
-                            case 2: {
-                                if (peggy.getCurrentStep() == 3) {
-                                    ffsC = victor.check(ffsY);
-                                    sendBooleanArray(new ArrayList<>(Collections.singletonList(ffsC)));
-
-                                    victor.setCurrentStep(0);
-                                    peggy.setCurrentStep(1);
-                                } else {
-                                    mConversationArrayAdapter.add("Me: Waiting for Peggy...");
-                                }
-                                break;
-                            }
-                        }
-                    }
+                    mProtocolHandler.post(mNextStep);
                 }
             }
         });
 
         // Initialize the BluetoothChatService to perform bluetooth connections
-        mChatService = new BluetoothChatService(activity, mHandler);
+        mChatService = new BluetoothChatService(activity, mProtocolHandler);
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer();
     }
 
+    /**
+     * Performs this device's next FFS step, run on the protocol thread.
+     */
+    private final Runnable mNextStep = new Runnable() {
+        @Override
+        public void run() {
+            FFSTrace.begin("nextStep");
+            try {
+                FFSMetrics metrics = FFSMetrics.get();
+                long t = System.nanoTime();
+                if (isPeggy) {
+                    switch (peggy.getCurrentStep()) {
+                        case 0: {
+                            ffsNV = peggy.getV();
+                            metrics.lap(FFSMetrics.Phase.GET_V, t);
+                            sendBigIntegerArray(ffsNV);
+                            break;
+                        }
+                        case 1: {
+                            ffsX = peggy.getX();
+                            metrics.lap(FFSMetrics.Phase.GET_X, t);
+                            sendBigIntegerArray(new ArrayList<>(Collections.singletonList(ffsX)));
+                            break;
+                        }
+                        case 2: {
+                            if (victor.getCurrentStep() == 2) {
+                                ffsY = peggy.getY(ffsA);
+                                metrics.lap(FFSMetrics.Phase.GET_Y, t);
+                                sendBigIntegerArray(
+                                        new ArrayList<>(Collections.singletonList(ffsY)));
+                            } else {
+                                postLine("Me: Waiting for Victor...");
+                            }
+                            break;
+                        }
+                    }
+                } else {
+                    switch (victor.getCurrentStep()) {
+                        case 0: {
+                            if (peggy.getCurrentStep() == 2) {
+                                victor.receiveV(ffsNV);
+                                ffsA = victor.getA(ffsX);
+                                metrics.lap(FFSMetrics.Phase.GET_A, t);
+                                sendBooleanArray(ffsA);
+                            } else {
+                                postLine("Me: Waiting for Peggy...");
+                            }
+                            break;
+                        }
+                        case 1: {
+                            break;
+                        }
+                        case 2: {
+                            if (peggy.getCurrentStep() == 3) {
+                                ffsC = victor.check(ffsY);
+                                metrics.lap(FFSMetrics.Phase.CHECK, t);
+                                metrics.increment(FFSMetrics.Counter.ROUNDS);
+                                if (!ffsC) {
+                                    metrics.increment(FFSMetrics.Counter.FAILED_ROUNDS);
+                                }
+                                sendBooleanArray(new ArrayList<>(Collections.singletonList(ffsC)));
+
+                                victor.setCurrentStep(0);
+                                peggy.setCurrentStep(1);
+                            } else {
+                                postLine("Me: Waiting for Peggy...");
+                            }
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                FFSTrace.end();
+            }
+        }
+    };
+
     /**
      * Makes this device discoverable for 300 seconds (5 minutes).
      */
@@ -330,112 +425,36 @@ public class BluetoothChatFragment extends Fragment {
         }
     }
 
-    static ArrayList<BigInteger> toBigIntegerArray(byte[] bytes) {
-        ArrayList<BigInteger> data = new ArrayList<>();
-
-        for (int i = 1; i + 1 < bytes.length; ) {
-            int length = bytes[i] * 128 + bytes[i + 1];
-            byte[] intBytes = new byte[length];
-
-            i += 2;
-
-            System.arraycopy(bytes, i, intBytes, 0, length);
-            data.add(new BigInteger(intBytes));
-
-            i += length;
-        }
-
-        return data;
-    }
-
-    static byte[] toByteArray(ArrayList<BigInteger> ints) {
-        ArrayList<byte[]> data = new ArrayList<>();
-        int length = 1;
-
-        for (BigInteger bigInteger : ints) {
-            byte[] send = bigInteger.toByteArray();
-            data.add(send);
-            length += send.length + 2;
-        }
-
-        byte[] bytes = new byte[length];
-        bytes[0] = 0b00000001;
-        int pos = 1;
-
-        for (byte[] d : data) {
-            bytes[pos] = (byte)(d.length / 128);
-            bytes[pos + 1] = (byte)(d.length % 128);
-            pos += 2;
-
-            System.arraycopy(d, 0, bytes, pos, d.length);
-            pos += d.length;
-        }
-
-        return bytes;
-    }
-
     private void sendBigIntegerArray(ArrayList<BigInteger> arr) {
         // Check that we're actually connected before trying anything
         if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
-            Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+            postToast(R.string.not_connected);
             return;
         }
 
         // Check that there's actually something to send
         if (arr.size() > 0) {
             // Send int array
-            byte[] send = toByteArray(arr);
+            long t = System.nanoTime();
+            byte[] send = FFSCodec.toByteArray(arr);
+            FFSMetrics.get().lap(FFSMetrics.Phase.ENCODE, t);
             mChatService.write(send);
         }
     }
 
-    static ArrayList<Boolean> toBooleanArray(byte[] bytes) {
-        BitSet bits = BitSet.valueOf(bytes);
-        ArrayList<Boolean> bools = new ArrayList<>();
-        for (int i = 0; i < bytes.length * 8; i++) {
-            bools.add(false);
-        }
-        for (int i = bits.nextSetBit(0); i != -1; i = bits.nextSetBit(i+1)) {
-            bools.set(i, true);
-        }
-        return bools;
-    }
-
-    static byte[] toByteArray(Boolean[] bools) {
-        BitSet bits = new BitSet(bools.length);
-        for (int i = 0; i < bools.length; i++) {
-            if (bools[i]) {
-                bits.set(i);
-            }
-        }
-
-        byte[] bytes = bits.toByteArray();
-        if (bytes.length * 8 >= bools.length) {
-            return bytes;
-        } else {
-            return Arrays.copyOf(bytes, bools.length / 8 + (bools.length % 8 == 0 ? 0 : 1));
-        }
-    }
-
     private void sendBooleanArray(ArrayList<Boolean> arr) {
         // Check that we're actually connected before trying anything
         if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
-            Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+            postToast(R.string.not_connected);
             return;
         }
 
         // Check that there's actually something to send
         if (arr.size() > 0) {
             // Send boolean array
-            Boolean[] boolsArr = new Boolean[arr.size()];
-            boolsArr = arr.toArray(boolsArr);
-
-            byte[] data = toByteArray(boolsArr);
-
-            byte[] send = new byte[data.length + 1];
-            send[0] = 0b00000010;
-            System.arraycopy(data, 0, send, 1, data.length);
-
+            long t = System.nanoTime();
+            byte[] send = FFSCodec.toBooleanMessage(arr);
+            FFSMetrics.get().lap(FFSMetrics.Phase.ENCODE, t);
             mChatService.write(send);
         }
     }
@@ -475,161 +494,281 @@ public class BluetoothChatFragment extends Fragment {
     }
 
     /**
-     * The Handler that gets information back from the BluetoothChatService
+     * Decodes a protocol message, advances the FFS state accordingly and returns the
+     * transcript line describing it. The values are kept as they are and only formatted
+     * when the line is shown. Runs on the protocol thread.
      */
-    @SuppressLint("HandlerLeak")
-    private final Handler mHandler = new Handler() {
-        private void handleData(String prefix, byte[] arr) {
-            byte type = arr[0];
-            StringBuilder message = new StringBuilder();
-
-            switch (type) {
-                case 0b00000000: {
-                    // String
-                    message = new StringBuilder(new String(Arrays.copyOfRange(arr, 1, arr.length)));
-                    break;
-                }
-                case 0b00000001: {
-                    // BigInteger
-                    ArrayList<BigInteger> data = toBigIntegerArray(arr);
-                    message = new StringBuilder();
-                    boolean close = false;
-                    int start = 0;
-
-                    if (isPeggy) {
-                        if (peggy.getCurrentStep() == 1) {
-                            message.append("N = ").append(data.get(0)).append("; V = [");
-                            data.remove(0);
-                            close = true;
-                        } else if (peggy.getCurrentStep() == 2) {
-                            message.append("X = ");
-                        } else if (peggy.getCurrentStep() == 3) {
-                            message.append("Y = ");
-                        }
-                    } else {
-                        if (peggy.getCurrentStep() == 0) {
-                            peggy.nextStep();
-                            message.append("N = ").append(data.get(0)).append("; V = [");
-                            ffsNV = data;
-                            close = true;
-                            start = 1;
-                        } else if (peggy.getCurrentStep() == 1) {
-                            peggy.nextStep();
-                            ffsX = data.get(0);
-                            message.append("X = ");
-                        } else if (peggy.getCurrentStep() == 2) {
-                            peggy.nextStep();
-                            ffsY = data.get(0);
-                            message.append("Y = ");
-                        }
+    private TranscriptAdapter.Entry handleData(String prefix, byte[] arr) {
+        byte type = arr[0];
+        TranscriptAdapter.Entry message = new TranscriptAdapter.Entry(prefix);
+
+        switch (type) {
+            case FFSCodec.TYPE_TEXT: {
+                // String
+                message.text(new String(Arrays.copyOfRange(arr, 1, arr.length)));
+                break;
+            }
+            case FFSCodec.TYPE_BIG_INTEGER: {
+                // BigInteger
+                long t = System.nanoTime();
+                ArrayList<BigInteger> data = FFSCodec.toBigIntegerArray(arr);
+                FFSMetrics.get().lap(FFSMetrics.Phase.DECODE, t);
+                boolean close = false;
+                int start = 0;
+
+                if (isPeggy) {
+                    if (peggy.getCurrentStep() == 1) {
+                        message.text("N = ").value(data.get(0)).text("; V = [");
+                        data.remove(0);
+                        close = true;
+                    } else if (peggy.getCurrentStep() == 2) {
+                        message.text("X = ");
+                    } else if (peggy.getCurrentStep() == 3) {
+                        message.text("Y = ");
                     }
+                } else {
+                    if (peggy.getCurrentStep() == 0) {
+                        peggy.nextStep();
+                        message.text("N = ").value(data.get(0)).text("; V = [");
+                        ffsNV = data;
+                        close = true;
+                        start = 1;
+                    } else if (peggy.getCurrentStep() == 1) {
+                        peggy.nextStep();
+                        ffsX = data.get(0);
+                        message.text("X = ");
+                    } else if (peggy.getCurrentStep() == 2) {
+                        peggy.nextStep();
+                        ffsY = data.get(0);
+                        message.text("Y = ");
+                    }
+                }
 
-                    for (int i = start; i < data.size(); i++) {
-                        message.append(data.get(i));
+                for (int i = start; i < data.size(); i++) {
+                    message.value(data.get(i));
 
-                        if (i < data.size() - 1) {
-                            message.append(" ");
-                        }
+                    if (i < data.size() - 1) {
+                        message.text(" ");
                     }
+                }
 
-                    if (close) message.append("]");
+                if (close) message.text("]");
 
-                    break;
-                }
-                case 0b00000010: {
-                    // Boolean
-                    ArrayList<Boolean> data = toBooleanArray(Arrays.copyOfRange(arr, 1, arr.length));
-                    message = new StringBuilder();
-                    boolean close = false;
-                    int size = 1;
-
-                    if (isPeggy) {
-                        if (victor.getCurrentStep() == 0) {
-                            victor.nextStep();
-                            victor.nextStep();
-                            ffsA = data;
-                            message.append("A = [");
-                            close = true;
-                            size = data.size();
-                        } else if (victor.getCurrentStep() == 2) {
-                            victor.nextStep();
-                            ffsC = data.get(0);
-                            message.append("Verified = ");
-                            victor.setCurrentStep(0);
-                            peggy.setCurrentStep(1);
-                        }
+                break;
+            }
+            case FFSCodec.TYPE_BOOLEAN: {
+                // Boolean
+                long t = System.nanoTime();
+                ArrayList<Boolean> data = FFSCodec.fromBooleanMessage(arr);
+                FFSMetrics.get().lap(FFSMetrics.Phase.DECODE, t);
+                boolean close = false;
+                int size = 1;
+
+                if (isPeggy) {
+                    if (victor.getCurrentStep() == 0) {
+                        victor.nextStep();
+                        victor.nextStep();
+                        ffsA = data;
+                        message.text("A = [");
+                        close = true;
+                        size = data.size();
+                    } else if (victor.getCurrentStep() == 2) {
+                        victor.nextStep();
+                        ffsC = data.get(0);
+                        message.text("Verified = ");
+                        victor.setCurrentStep(0);
+                        peggy.setCurrentStep(1);
+                    }
+                } else {
+                    if (victor.getCurrentStep() == 2) {
+                        message.text("A = [");
+                        close = true;
+                        size = data.size();
                     } else {
-                        if (victor.getCurrentStep() == 2) {
-                            message.append("A = [");
-                            close = true;
-                            size = data.size();
-                        } else {
-                            message.append("Verified = ");
-                        }
+                        message.text("Verified = ");
                     }
+                }
 
-                    for (int i = 0; i < size; i++) {
-                        message.append(data.get(i));
+                for (int i = 0; i < size; i++) {
+                    message.value(data.get(i));
 
-                        if (i < size - 1) {
-                            message.append(" ");
-                        }
+                    if (i < size - 1) {
+                        message.text(" ");
                     }
+                }
+
+                if (close) message.text("]");
+
+                break;
+            }
+        }
+
+        return message;
+    }
 
-                    if (close) message.append("]");
+    /**
+     * Appends a line to the conversation and scrolls to it. Main thread only.
+     */
+    private void addLine(TranscriptAdapter.Entry line) {
+        mTranscript.add(line);
+        mConversationView.scrollToPosition(mTranscript.getItemCount() - 1);
+    }
 
-                    break;
+    private void addLine(String line) {
+        addLine(new TranscriptAdapter.Entry(line));
+    }
+
+    /**
+     * Appends a line to the conversation from any thread.
+     */
+    private void postLine(final TranscriptAdapter.Entry line) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                addLine(line);
+            }
+        });
+    }
+
+    private void postLine(String line) {
+        postLine(new TranscriptAdapter.Entry(line));
+    }
+
+    /**
+     * Shows a toast from any thread.
+     */
+    private void postToast(final int resId) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                FragmentActivity activity = getActivity();
+                if (null != activity) {
+                    Toast.makeText(activity, resId, Toast.LENGTH_SHORT).show();
                 }
             }
+        });
+    }
 
-            mConversationArrayAdapter.add(prefix + message.toString());
+    /**
+     * Hands a message received on the protocol thread over to {@link #mHandler}.
+     */
+    private void forward(Message msg) {
+        Message copy = mHandler.obtainMessage(msg.what, msg.arg1, msg.arg2, msg.obj);
+        copy.setData(msg.getData());
+        mHandler.sendMessage(copy);
+    }
+
+    /**
+     * Receives everything the BluetoothChatService reports. Protocol messages are handled
+     * right here on the protocol thread, the rest is forwarded to the main thread.
+     */
+    private final Handler.Callback mProtocolCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            FFSTrace.begin("protocolMessage");
+            try {
+                switch (msg.what) {
+                    case Constants.MESSAGE_STATE_CHANGE:
+                        switch (msg.arg1) {
+                            case BluetoothChatService.STATE_CONNECTED:
+                                initFFS(16, 8);
+                                break;
+                            case BluetoothChatService.STATE_LISTEN:
+                            case BluetoothChatService.STATE_NONE:
+                                isPeggy = false;
+                                break;
+                        }
+                        forward(msg);
+                        break;
+                    case Constants.MESSAGE_WRITE:
+                        byte[] writeBuf = (byte[]) msg.obj;
+                        // construct a string from the buffer
+                        postLine(handleData("Me: ", writeBuf));
+                        break;
+                    case Constants.MESSAGE_READ:
+                        byte[] readBuf = (byte[]) msg.obj;
+                        // the buffer holds exactly one message, msg.arg1 bytes
+                        postLine(handleData(mConnectedDeviceName + ":  ", readBuf));
+                        break;
+                    case Constants.MESSAGE_DEVICE_NAME:
+                        // save the connected device's name before the state change needs it
+                        mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
+                        forward(msg);
+                        break;
+                    default:
+                        forward(msg);
+                        break;
+                }
+            } finally {
+                FFSTrace.end();
+            }
+            return true;
         }
+    };
 
+    /**
+     * The Handler that updates the UI on the main thread
+     */
+    @SuppressLint("HandlerLeak")
+    private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
-            FragmentActivity activity = getActivity();
-            switch (msg.what) {
-                case Constants.MESSAGE_STATE_CHANGE:
-                    switch (msg.arg1) {
-                        case BluetoothChatService.STATE_CONNECTED:
-                            setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
-                            mConversationArrayAdapter.clear();
-                            initFFS(16, 8);
-                            break;
-                        case BluetoothChatService.STATE_CONNECTING:
-                            setStatus(R.string.title_connecting);
-                            break;
-                        case BluetoothChatService.STATE_LISTEN:
-                        case BluetoothChatService.STATE_NONE:
-                            setStatus(R.string.title_not_connected);
-                            isPeggy = false;
-                            break;
-                    }
-                    break;
-                case Constants.MESSAGE_WRITE:
-                    byte[] writeBuf = (byte[]) msg.obj;
-                    // construct a string from the buffer
-                    handleData("Me: ", writeBuf);
-                    break;
-                case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    handleData(mConnectedDeviceName + ":  ", Arrays.copyOfRange(readBuf, 0, msg.arg1));
-                    break;
-                case Constants.MESSAGE_DEVICE_NAME:
-                    // save the connected device's name
-                    mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
-                    if (null != activity) {
-                        Toast.makeText(activity, "Connected to "
-                                + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
-                    }
-                    break;
-                case Constants.MESSAGE_TOAST:
-                    if (null != activity) {
-                        Toast.makeText(activity, msg.getData().getString(Constants.TOAST),
-                                Toast.LENGTH_SHORT).show();
+            FFSTrace.begin("uiMessage");
+            try {
+                FragmentActivity activity = getActivity();
+                switch (msg.what) {
+                    case Constants.MESSAGE_STATE_CHANGE:
+                        switch (msg.arg1) {
+                            case BluetoothChatService.STATE_CONNECTED:
+                                setStatus(getString(R.string.title_connected_to,
+                                        mConnectedDeviceName));
+                                mTranscript.clear();
+                                break;
+                            case BluetoothChatService.STATE_CONNECTING:
+                                setStatus(R.string.title_connecting);
+                                break;
+                            case BluetoothChatService.STATE_LISTEN:
+                            case BluetoothChatService.STATE_NONE:
+                                setStatus(R.string.title_not_connected);
+                                break;
+                        }
+                        break;
+                    case Constants.MESSAGE_DEVICE_NAME:
+                        if (null != activity) {
+                            Toast.makeText(activity, "Connected to "
+                                    + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
+                        }
+                        break;
+                    case Constants.MESSAGE_TOAST:
+                        if (null != activity) {
+                            Toast.makeText(activity, msg.getData().getString(Constants.TOAST),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                        break;
+                    case Constants.MESSAGE_SESSION_STARTED:
+                        addLine("Session " + msg.arg1 + ": "
+                                + msg.getData().getString(Constants.DEVICE_NAME) + " connected");
+                        break;
+                    case Constants.MESSAGE_SESSION_FINISHED: {
+                        Bundle data = msg.getData();
+                        String line = String.format(Locale.US,
+                                "Session %d: %s Verified = %b (%d ms",
+                                msg.arg1, data.getString(Constants.DEVICE_NAME), msg.arg2 == 1,
+                                data.getLong(Constants.SESSION_ELAPSED) / 1000000);
+                        double throughput = data.getDouble(Constants.SESSION_THROUGHPUT);
+                        if (throughput > 0) {
+                            line += String.format(Locale.US, ", %.1f sessions/s", throughput);
+                        }
+                        addLine(line + ")");
+                        break;
                     }
-                    break;
+                    case Constants.MESSAGE_SESSION_FAILED:
+                        addLine("Session " + msg.arg1 + ": "
+                                + msg.getData().getString(Constants.DEVICE_NAME) + " failed");
+                        break;
+                }
+            } finally {
+                FFSTrace.end();
             }
         }
     };
@@ -685,6 +824,87 @@ public class BluetoothChatFragment extends Fragment {
         mChatService.connect(device, secure);
     }
 
+    /**
+     * Shows where the time of the identifications so far went and what the
+     * current connection carried, and saves the former as JSON next to the
+     * trace file.
+     */
+    private void showMetrics() {
+        FFSMetrics metrics = FFSMetrics.get();
+        for (String line : metrics.toSummary().split("\n")) {
+            addLine(line);
+        }
+        WireStats.Snapshot wire = mChatService == null ? null : mChatService.getConnectionStats();
+        if (wire != null) {
+            for (String line : wire.toString().split("\n")) {
+                addLine(line);
+            }
+        }
+
+        final String json = metrics.toJson();
+        final File file = new File(getActivity().getFilesDir(), METRICS_FILE);
+        mProtocolHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try (OutputStream out = new FileOutputStream(file)) {
+                    out.write(json.getBytes(StandardCharsets.UTF_8));
+                    postToast(R.string.metrics_saved);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not save %s", file, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the spans recorded so far as a Chrome trace next to the trace file,
+     * to open in the Perfetto UI, and starts a new recording.
+     */
+    private void saveTrace() {
+        final File file = new File(getActivity().getFilesDir(), TRACE_FILE);
+        mProtocolHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                        StandardCharsets.UTF_8)) {
+                    FFSTrace.writeChromeJson(out);
+                    postToast(R.string.trace_saved);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not save %s", file, e);
+                }
+                FFSTrace.setEnabled(true);
+            }
+        });
+    }
+
+    /**
+     * Identify to all paired devices at once, each one acting as a verifier
+     * station.
+     */
+    private void proveToPairedDevices() {
+        final ArrayList<String> addresses = new ArrayList<>();
+        for (BluetoothDevice device : mBluetoothAdapter.getBondedDevices()) {
+            addresses.add(device.getAddress());
+        }
+        if (addresses.isEmpty()) {
+            Toast.makeText(getActivity(), R.string.none_paired, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        mTranscript.clear();
+        mProtocolHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Reuse the key of the chat session so every verifier sees the same identity
+                if (ffsS.isEmpty()) {
+                    initFFS(16, VERIFIER_K);
+                }
+                mChatService.proveToAll(addresses, true, new FFSKey(ffsN, ffsS), 16,
+                        VERIFIER_ROUNDS);
+            }
+        });
+    }
+
     @Override
     public void onCreateOptionsMenu(@NonNull Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.bluetooth_chat, menu);
@@ -714,6 +934,26 @@ public class BluetoothChatFragment extends Fragment {
                 ensureDiscoverable();
                 return true;
             }
+            case R.id.prove_to_paired: {
+                // Identify to every paired device at the same time
+                proveToPairedDevices();
+                return true;
+            }
+            case R.id.verifier_station: {
+                // Verify every prover that connects, several at a time
+                isPeggy = false;
+                mTranscript.clear();
+                mChatService.startMultiSession(VERIFIER_K, VERIFIER_ROUNDS, VERIFIER_MAX_SESSIONS);
+                return true;
+            }
+            case R.id.show_metrics: {
+                showMetrics();
+                return true;
+            }
+            case R.id.save_trace: {
+                saveTrace();
+                return true;
+            }
         }
         return false;
     }
@@ -18,27 +18,41 @@ package com.example.android.bluetoothchat;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 
 import com.example.android.common.logger.Log;
+import com.example.android.ffs.FFSCodec;
+import com.example.android.ffs.FFSKey;
+import com.example.android.ffs.FFSProverClient;
+import com.example.android.ffs.FFSTrace;
+import com.example.android.ffs.FFSVerifierServer;
+import com.example.android.transport.Connection;
+import com.example.android.transport.CountingConnection;
+import com.example.android.transport.FramedConnection;
+import com.example.android.transport.LinkMonitor;
+import com.example.android.transport.Multiplexer;
+import com.example.android.transport.ServerEndpoint;
+import com.example.android.transport.Transport;
+import com.example.android.transport.WireStats;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.math.BigInteger;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * connections with other devices. It has a task that listens for
+ * incoming connections, a task for connecting with a device, and a
+ * task for performing data transmissions when connected. The tasks run
+ * on a small {@link ConnectionExecutor} instead of threads of their own.
+ * <p>
+ * The sockets themselves come from a {@link Transport}, Bluetooth RFCOMM by
+ * default, so the same service can run over other links as well.
  */
 public class BluetoothChatService {
     // Debugging
@@ -55,14 +69,26 @@ public class BluetoothChatService {
             UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
 
     // Member fields
-    private final BluetoothAdapter mAdapter;
+    private final Transport mSecureTransport;
+    private final Transport mInsecureTransport;
     private final Handler mHandler;
-    private AcceptThread mSecureAcceptThread;
-    private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
-    private int mNewState;
+    private final ConnectionExecutor mExecutor;
+    private AcceptTask mSecureAcceptTask;
+    private AcceptTask mInsecureAcceptTask;
+    private ConnectTask mConnectTask;
+    // Read without the lock by write(), so it has to be volatile
+    private volatile ConnectedTask mConnectedTask;
+    private volatile FFSVerifierServer mVerifierServer;
+    private FFSProverClient mProverClient;
+    private final ConnectionStateMachine mState = new ConnectionStateMachine();
+    private final AtomicInteger mNewState = new AtomicInteger(STATE_NONE);
+    private volatile LinkMonitor.Listener mLinkListener;
+
+    // Time from losing a connection until listening again
+    private long mDisconnectedAt;
+    private long mLastRelistenNanos;
+    private long mTotalRelistenNanos;
+    private int mRelistenCount;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -70,6 +96,14 @@ public class BluetoothChatService {
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
 
+    // Logical channels on the connected stream
+    private static final int CHANNEL_PROTOCOL = 0; // FFS messages
+    private static final int CHANNEL_CHAT = 1;     // text messages
+    private static final int CHANNEL_PROBE = 2;    // link quality probes
+
+    // How often a connection measures its round trip time
+    private static final long PING_INTERVAL_MS = 2000;
+
     /**
      * Constructor. Prepares a new BluetoothChat session.
      *
@@ -77,191 +111,424 @@ public class BluetoothChatService {
      * @param handler A Handler to send messages back to the UI Activity
      */
     public BluetoothChatService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mNewState = mState;
+        this(handler,
+                new BluetoothTransport(BluetoothAdapter.getDefaultAdapter(), MY_UUID_SECURE, true),
+                new BluetoothTransport(BluetoothAdapter.getDefaultAdapter(), MY_UUID_INSECURE, false));
+    }
+
+    /**
+     * Constructor. Prepares a new chat session over the given transports.
+     *
+     * @param handler           A Handler to send messages back to the UI Activity
+     * @param secureTransport   Transport used for secure connections
+     * @param insecureTransport Transport used for insecure connections
+     */
+    public BluetoothChatService(Handler handler, Transport secureTransport,
+                                Transport insecureTransport) {
+        mSecureTransport = secureTransport;
+        mInsecureTransport = insecureTransport;
         mHandler = handler;
+        mExecutor = new ConnectionExecutor(new ConnectionExecutor.Hooks() {
+            @Override
+            public void onTaskStarted(String name) {
+                Log.d(TAG, "BEGIN %s", name);
+            }
+
+            @Override
+            public void onTaskFinished(String name, Throwable t) {
+                if (t != null) {
+                    Log.e(TAG, "END %s", name, t);
+                } else {
+                    Log.i(TAG, "END %s", name);
+                }
+            }
+        });
     }
 
     /**
      * Update UI title according to the current state of the chat connection
      */
-    private synchronized void updateUserInterfaceTitle() {
-        mState = getState();
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
-        mNewState = mState;
+    private void updateUserInterfaceTitle() {
+        int state = getState();
+        int oldState = mNewState.getAndSet(state);
+        Log.d(TAG, "updateUserInterfaceTitle() %d -> %d", oldState, state);
 
         // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, mNewState, -1).sendToTarget();
+        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
     }
 
     /**
-     * Return the current connection state.
+     * Move the connection state, logging transitions that are not allowed.
+     *
+     * @return Whether the state changed
      */
-    public synchronized int getState() {
-        return mState;
+    private boolean moveTo(int state) {
+        if (mState.moveTo(state)) {
+            return true;
+        }
+        if (Log.isLoggable(TAG, Log.WARN)) {
+            Log.w(TAG, "illegal state change %s -> %s", ConnectionStateMachine.name(mState.get()),
+                    ConnectionStateMachine.name(state));
+        }
+        return false;
+    }
+
+    /**
+     * Return the current connection state. Never blocks.
+     */
+    public int getState() {
+        return mState.get();
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
+     * Return how long it took to listen again after the last lost or failed
+     * connection, in nanoseconds.
+     */
+    public synchronized long getLastRelistenNanos() {
+        return mLastRelistenNanos;
+    }
+
+    /**
+     * Return the average time from a lost or failed connection until listening
+     * again, in nanoseconds.
+     */
+    public synchronized long getAverageRelistenNanos() {
+        return mRelistenCount == 0 ? 0 : mTotalRelistenNanos / mRelistenCount;
+    }
+
+    /**
+     * Return the number of received messages the handler has not processed yet,
+     * bounded by the flow control window.
+     */
+    public int getReadQueueDepth() {
+        ConnectedTask r = mConnectedTask;
+        return r == null || r.mmChannels == null ? 0
+                : r.mmChannels.getFrames().getReceiveQueueDepth();
+    }
+
+    /**
+     * Return the number of writes waiting to be sent, most of them for the
+     * remote device to catch up.
+     */
+    public int getWriteQueueDepth() {
+        ConnectedTask r = mConnectedTask;
+        return r == null || r.mmChannels == null ? 0 : r.getWriteQueueDepth();
+    }
+
+    /**
+     * Set the listener told about the round trip time and throughput of each
+     * connection, about every {@link #PING_INTERVAL_MS} while connected.
+     */
+    public void setLinkListener(LinkMonitor.Listener listener) {
+        mLinkListener = listener;
+    }
+
+    /**
+     * Return the link estimates of the current connection, or null when not
+     * connected.
+     */
+    public LinkMonitor getLinkMonitor() {
+        ConnectedTask r = mConnectedTask;
+        return r == null ? null : r.mmMonitor;
+    }
+
+    /**
+     * Return what the current connection has carried so far, or null when not
+     * connected.
+     */
+    public WireStats.Snapshot getConnectionStats() {
+        ConnectedTask r = mConnectedTask;
+        return r == null ? null : r.mmStats.snapshot();
+    }
+
+    /**
+     * Start the chat service. Specifically start AcceptTask to begin a
      * session in listening (server) mode. Called by the Activity onResume()
+     * <p>
+     * The listening sockets stay open while connected and across connection
+     * loss, so after a disconnect this only has to drop the old connection.
      */
     public synchronized void start() {
         Log.d(TAG, "start");
 
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        // Leave verifier station mode
+        if (mVerifierServer != null) {
+            mVerifierServer.stop();
+            mVerifierServer = null;
+        }
+
+        // Cancel any task attempting to make a connection
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        // Cancel any task currently running a connection
+        if (mConnectedTask != null) {
+            mConnectedTask.cancel();
+            mConnectedTask = null;
         }
 
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mSecureAcceptThread == null) {
-            mSecureAcceptThread = new AcceptThread(true);
-            mSecureAcceptThread.start();
+        // Start the tasks to listen on a server socket, unless they still are
+        if (mSecureAcceptTask == null) {
+            mSecureAcceptTask = new AcceptTask(true);
+            mExecutor.execute(mSecureAcceptTask);
         }
-        if (mInsecureAcceptThread == null) {
-            mInsecureAcceptThread = new AcceptThread(false);
-            mInsecureAcceptThread.start();
+        if (mInsecureAcceptTask == null) {
+            mInsecureAcceptTask = new AcceptTask(false);
+            mExecutor.execute(mInsecureAcceptTask);
+        }
+        moveTo(STATE_LISTEN);
+
+        if (mDisconnectedAt != 0) {
+            mLastRelistenNanos = System.nanoTime() - mDisconnectedAt;
+            mTotalRelistenNanos += mLastRelistenNanos;
+            mRelistenCount++;
+            mDisconnectedAt = 0;
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                // Guarded, as boxing the long would allocate even if nothing is logged
+                Log.d(TAG, "listening again after %d us", mLastRelistenNanos / 1000);
+            }
         }
         // Update UI title
         updateUserInterfaceTitle();
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Start verifier station mode. Instead of serving a single connection, keep
+     * listening on both transports and verify every prover that connects in a
+     * session of its own, up to maxSessions at the same time. Session events
+     * are sent to the Handler as MESSAGE_SESSION_* messages carrying the
+     * session id in arg1.
+     *
+     * @param k           Number of secrets the provers use
+     * @param rounds      Number of challenge rounds per session
+     * @param maxSessions Upper bound of concurrent sessions
+     */
+    public synchronized void startMultiSession(int k, int rounds, int maxSessions) {
+        Log.d(TAG, "startMultiSession");
+
+        // Cancel everything belonging to single connection mode
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
+        }
+        if (mConnectedTask != null) {
+            mConnectedTask.cancel();
+            mConnectedTask = null;
+        }
+        if (mSecureAcceptTask != null) {
+            mSecureAcceptTask.cancel();
+            mSecureAcceptTask = null;
+        }
+        if (mInsecureAcceptTask != null) {
+            mInsecureAcceptTask.cancel();
+            mInsecureAcceptTask = null;
+        }
+        if (mVerifierServer != null) {
+            mVerifierServer.stop();
+        }
+
+        mVerifierServer = new FFSVerifierServer(k, rounds, maxSessions, new SessionListener());
+        try {
+            mVerifierServer.serve(mSecureTransport.listen(NAME_SECURE));
+        } catch (IOException e) {
+            Log.e(TAG, "Socket Type: Secure listen() failed", e);
+        }
+        try {
+            mVerifierServer.serve(mInsecureTransport.listen(NAME_INSECURE));
+        } catch (IOException e) {
+            Log.e(TAG, "Socket Type: Insecure listen() failed", e);
+        }
+
+        moveTo(STATE_LISTEN);
+        // Update UI title
+        updateUserInterfaceTitle();
+    }
+
+    /**
+     * Identify to several verifiers at once. Each address gets its own outgoing
+     * connection and session, independent of the single chat connection, and the
+     * key is shared read-only between them. Session events are sent to the
+     * Handler as MESSAGE_SESSION_* messages carrying the session id in arg1.
+     *
+     * @param addresses The transport addresses of the verifiers
+     * @param secure    Socket Security type - Secure (true) , Insecure (false)
+     * @param key       The prover key
+     * @param l         Security parameter the key was generated with
+     * @param rounds    Number of challenge rounds per session
+     */
+    public synchronized void proveToAll(List<String> addresses, boolean secure, FFSKey key,
+                                        int l, int rounds) {
+        Log.d(TAG, "proveToAll: %s", addresses);
+
+        if (mProverClient != null) {
+            mProverClient.stop();
+        }
+        mProverClient = new FFSProverClient(key, l, rounds, Math.max(1, addresses.size()),
+                new SessionListener());
+
+        Transport transport = secure ? mSecureTransport : mInsecureTransport;
+        for (String address : addresses) {
+            mProverClient.prove(transport, address);
+        }
+    }
+
+    /**
+     * Start the ConnectTask to initiate a connection to a remote device.
      *
      * @param device The BluetoothDevice to connect
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        Log.d(TAG, "connect to: " + device);
-
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
+    public void connect(BluetoothDevice device, boolean secure) {
+        connect(device.getAddress(), secure);
+    }
+
+    /**
+     * Start the ConnectTask to initiate a connection to a remote device.
+     *
+     * @param address The transport address of the remote device
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    public synchronized void connect(String address, boolean secure) {
+        Log.d(TAG, "connect to: %s", address);
+
+        // Cancel any task attempting to make a connection
+        if (mState.get() == STATE_CONNECTING) {
+            if (mConnectTask != null) {
+                mConnectTask.cancel();
+                mConnectTask = null;
             }
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        // Cancel any task currently running a connection
+        if (mConnectedTask != null) {
+            mConnectedTask.cancel();
+            mConnectedTask = null;
         }
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
-        mConnectThread.start();
+        // Start the task to connect with the given device
+        moveTo(STATE_CONNECTING);
+        mConnectTask = new ConnectTask(address, secure);
+        mExecutor.execute(mConnectTask);
         // Update UI title
         updateUserInterfaceTitle();
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start the ConnectedTask to begin managing a Bluetooth connection. Only
+     * possible while listening or connecting, otherwise the connection is left
+     * to the caller.
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param connection The Connection on which the connection was made
+     * @param socketType The type of the connection, for logging
+     * @return Whether the connection was taken over
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        Log.d(TAG, "connected, Socket Type:" + socketType);
+    public synchronized boolean connected(Connection connection, final String socketType) {
+        Log.d(TAG, "connected, Socket Type:%s", socketType);
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        // Either not ready or already connected
+        if (!mState.moveTo(STATE_CONNECTED)) {
+            return false;
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        // Cancel the task that completed the connection
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
-        }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        // Cancel any task currently running a connection
+        if (mConnectedTask != null) {
+            mConnectedTask.cancel();
+            mConnectedTask = null;
         }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+        // The accept tasks keep running, they turn away other devices while we
+        // are connected, and are ready again as soon as this connection ends
+
+        // Start the task to manage the connection and perform transmissions
+        mConnectedTask = new ConnectedTask(connection, socketType);
+        mExecutor.execute(mConnectedTask);
 
         // Send the name of the connected device back to the UI Activity
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
+        bundle.putString(Constants.DEVICE_NAME, connection.getRemoteName());
         msg.setData(bundle);
         mHandler.sendMessage(msg);
         // Update UI title
         updateUserInterfaceTitle();
+        return true;
     }
 
     /**
-     * Stop all threads
+     * Stop all tasks
      */
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
+        }
+
+        if (mConnectedTask != null) {
+            mConnectedTask.cancel();
+            mConnectedTask = null;
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mSecureAcceptTask != null) {
+            mSecureAcceptTask.cancel();
+            mSecureAcceptTask = null;
         }
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+        if (mInsecureAcceptTask != null) {
+            mInsecureAcceptTask.cancel();
+            mInsecureAcceptTask = null;
         }
 
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        if (mVerifierServer != null) {
+            mVerifierServer.stop();
+            mVerifierServer = null;
         }
-        mState = STATE_NONE;
+
+        if (mProverClient != null) {
+            mProverClient.stop();
+            mProverClient = null;
+        }
+        moveTo(STATE_NONE);
         // Update UI title
         updateUserInterfaceTitle();
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Write to the ConnectedTask in an unsynchronized manner
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @see ConnectedTask#write(byte[])
      */
     public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        // Perform the write unsynchronized
+        // Take a copy of the volatile reference, there is no lock to hold
+        ConnectedTask r = mConnectedTask;
+        if (r == null) return;
         r.write(out);
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
+     *
+     * @param task The task whose attempt failed
      */
-    private void connectionFailed() {
+    private void connectionFailed(ConnectTask task) {
+        // Only the current attempt may change the state
+        synchronized (this) {
+            if (mConnectTask != task || !mState.compareAndSet(STATE_CONNECTING, STATE_NONE)) {
+                return;
+            }
+            mDisconnectedAt = System.nanoTime();
+        }
+
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -269,7 +536,6 @@ public class BluetoothChatService {
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
-        mState = STATE_NONE;
         // Update UI title
         updateUserInterfaceTitle();
 
@@ -279,8 +545,19 @@ public class BluetoothChatService {
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
+     *
+     * @param task The task whose connection was lost
      */
-    private void connectionLost() {
+    private void connectionLost(ConnectedTask task) {
+        // Only the current connection may change the state, a replaced one
+        // going away is not a lost connection
+        synchronized (this) {
+            if (mConnectedTask != task || !mState.compareAndSet(STATE_CONNECTED, STATE_NONE)) {
+                return;
+            }
+            mDisconnectedAt = System.nanoTime();
+        }
+
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -288,7 +565,6 @@ public class BluetoothChatService {
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
-        mState = STATE_NONE;
         // Update UI title
         updateUserInterfaceTitle();
 
@@ -297,233 +573,465 @@ public class BluetoothChatService {
     }
 
     /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * Forwards verifier station and multi-target prover session events to the
+     * UI Activity.
      */
-    private class AcceptThread extends Thread {
+    private class SessionListener implements FFSVerifierServer.Listener,
+            FFSProverClient.Listener {
+        @Override
+        public void onSessionStarted(int sessionId, String remoteName) {
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_SESSION_STARTED, sessionId, -1);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.DEVICE_NAME, remoteName);
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+        }
+
+        @Override
+        public void onSessionFinished(int sessionId, String remoteName, boolean verified,
+                                      long elapsedNanos) {
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_SESSION_FINISHED, sessionId,
+                    verified ? 1 : 0);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.DEVICE_NAME, remoteName);
+            bundle.putLong(Constants.SESSION_ELAPSED, elapsedNanos);
+            FFSVerifierServer server = mVerifierServer;
+            if (server != null) {
+                bundle.putDouble(Constants.SESSION_THROUGHPUT, server.getThroughput());
+            }
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+        }
+
+        @Override
+        public void onSessionFailed(int sessionId, String remoteName, IOException e) {
+            Log.e(TAG, "Session %d failed", sessionId, e);
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_SESSION_FAILED, sessionId, -1);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.DEVICE_NAME, remoteName);
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+        }
+
+        @Override
+        public void onSessionRejected(String remoteName) {
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.TOAST, "Too many sessions, rejected " + remoteName);
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+        }
+    }
+
+    /**
+     * This task runs while listening for incoming connections. It behaves
+     * like a server-side client. It keeps the server socket open and runs
+     * until cancelled, turning away connections while already connected.
+     */
+    private class AcceptTask implements ConnectionExecutor.NamedTask {
         // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+        private final ServerEndpoint mmServerSocket;
+        private final boolean mSecure;
         private String mSocketType;
+        private volatile boolean mCancelled;
 
-        public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
+        public AcceptTask(boolean secure) {
+            ServerEndpoint tmp = null;
+            mSecure = secure;
             mSocketType = secure ? "Secure" : "Insecure";
 
             // Create a new listening server socket
             try {
                 if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                            MY_UUID_SECURE);
+                    tmp = mSecureTransport.listen(NAME_SECURE);
                 } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
+                    tmp = mInsecureTransport.listen(NAME_INSECURE);
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
+                Log.e(TAG, "Socket Type: %slisten() failed", mSocketType, e);
             }
             mmServerSocket = tmp;
-            mState = STATE_LISTEN;
         }
 
-        public void run() {
-            Log.d(TAG, "Socket Type: " + mSocketType +
-                    "BEGIN mAcceptThread" + this);
-            setName("AcceptThread" + mSocketType);
+        @Override
+        public String getName() {
+            return "AcceptTask" + mSocketType;
+        }
 
-            BluetoothSocket socket;
+        public void run() {
+            Connection socket;
 
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Listen to the server socket until cancelled
+            while (mmServerSocket != null && !mCancelled) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
                     socket = mmServerSocket.accept();
                 } catch (IOException e) {
-                    Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
+                    if (!mCancelled) {
+                        Log.e(TAG, "Socket Type: %saccept() failed", mSocketType, e);
+                    }
                     break;
                 }
 
-                // If a connection was accepted
-                if (socket != null) {
-                    synchronized (BluetoothChatService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
-                        }
+                // If a connection was accepted, start the connected task. That
+                // is refused unless we are listening or connecting.
+                if (socket != null && !connected(socket, mSocketType)) {
+                    // Either not ready or already connected. Terminate new socket.
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not close unwanted socket", e);
                     }
                 }
             }
-            Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
 
+            // If this one broke, open a new server socket right away while the
+            // service is listening. start() may have run since the loop ended
+            // and left this task in place. Otherwise leave it to start().
+            synchronized (BluetoothChatService.this) {
+                boolean current = mSecure ? mSecureAcceptTask == this : mInsecureAcceptTask == this;
+                if (!current) {
+                    return;
+                }
+                AcceptTask replacement = null;
+                // A socket that never opened would fail again at once
+                if (!mCancelled && mmServerSocket != null && getState() == STATE_LISTEN) {
+                    replacement = new AcceptTask(mSecure);
+                }
+                if (mSecure) {
+                    mSecureAcceptTask = replacement;
+                } else {
+                    mInsecureAcceptTask = replacement;
+                }
+                if (replacement != null) {
+                    mExecutor.execute(replacement);
+                }
+            }
         }
 
         public void cancel() {
-            Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            Log.d(TAG, "Socket Type%scancel %s", mSocketType, this);
+            mCancelled = true;
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type" + mSocketType + "close() of server failed", e);
+                Log.e(TAG, "Socket Type%sclose() of server failed", mSocketType, e);
             }
         }
     }
 
 
     /**
-     * This thread runs while attempting to make an outgoing connection
+     * This task runs while attempting to make an outgoing connection
      * with a device. It runs straight through; the connection either
      * succeeds or fails.
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private class ConnectTask implements ConnectionExecutor.NamedTask {
+        private final Connection mmSocket;
         private String mSocketType;
+        private volatile boolean mCancelled;
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectTask(String address, boolean secure) {
+            Connection tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // Get a Connection for a connection with the given address
             try {
                 if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
+                    tmp = mSecureTransport.open(address);
                 } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            MY_UUID_INSECURE);
+                    tmp = mInsecureTransport.open(address);
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
+                Log.e(TAG, "Socket Type: %screate() failed", mSocketType, e);
             }
             mmSocket = tmp;
-            mState = STATE_CONNECTING;
         }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+        @Override
+        public String getName() {
+            return "ConnectTask" + mSocketType;
+        }
 
-            // Make a connection to the BluetoothSocket
+        public void run() {
+            // Make a connection to the Connection
             try {
+                if (mmSocket == null) {
+                    throw new IOException("No socket");
+                }
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
-                mmSocket.connect();
+                FFSTrace.begin("connect");
+                try {
+                    mmSocket.connect();
+                } finally {
+                    FFSTrace.end();
+                }
             } catch (IOException e) {
                 // Close the socket
                 try {
-                    mmSocket.close();
+                    if (mmSocket != null) {
+                        mmSocket.close();
+                    }
                 } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
+                    Log.e(TAG, "unable to close() %s socket during connection failure",
+                            mSocketType, e2);
+                }
+                // A cancelled attempt was replaced on purpose, it did not fail
+                if (!mCancelled) {
+                    connectionFailed(this);
                 }
-                connectionFailed();
                 return;
             }
 
-            // Reset the ConnectThread because we're done
+            // Reset the ConnectTask because we're done
             synchronized (BluetoothChatService.this) {
-                mConnectThread = null;
+                if (mConnectTask == this) {
+                    mConnectTask = null;
+                }
             }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+            // Start the connected task, unless an incoming connection won
+            if (!connected(mmSocket, mSocketType)) {
+                cancel();
+            }
         }
 
         public void cancel() {
+            mCancelled = true;
+            if (mmSocket == null) {
+                return;
+            }
             try {
                 mmSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+                Log.e(TAG, "close() of connect %s socket failed", mSocketType, e);
             }
         }
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * This task runs during a connection with a remote device.
+     * It handles all incoming transmissions, its writer all outgoing ones.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
+    private class ConnectedTask implements ConnectionExecutor.NamedTask {
+        private final Connection mmSocket;
+        private final Multiplexer mmChannels;
+        private final LinkMonitor mmMonitor;
+        private final WireStats mmStats = new WireStats();
+        // Taken by mmWriter. The reader brings credit in and the handler gives
+        // it back, so neither of them may wait for credit in a send.
+        private final LinkedBlockingQueue<Outgoing> mmOutgoing = new LinkedBlockingQueue<>();
+        private volatile boolean mCancelled;
+
+        private final Runnable mmPing = new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    return;
+                }
+                mmOutgoing.add(Outgoing.PING);
+                mHandler.postDelayed(this, PING_INTERVAL_MS);
+            }
+        };
+
+        private final Runnable mmRelease = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mmChannels.release();
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception during release", e);
+                }
+            }
+        };
+
+        private final ConnectionExecutor.NamedTask mmWriter = new ConnectionExecutor.NamedTask() {
+            @Override
+            public String getName() {
+                return "ConnectedWriter";
+            }
 
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
+            @Override
+            public void run() {
+                try {
+                    Outgoing next;
+                    while ((next = mmOutgoing.take()) != Outgoing.CLOSE) {
+                        sendQueued(next);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        public ConnectedTask(Connection socket, String socketType) {
+            Log.d(TAG, "create ConnectedTask: %s", socketType);
             mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+            Multiplexer tmp = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the Connection input and output streams
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                // Frames are released once the handler got to them, see run()
+                tmp = new Multiplexer(new FramedConnection(new CountingConnection(socket, mmStats),
+                        FramedConnection.DEFAULT_WINDOW, false));
+                // Identification rounds overtake chat text on the same link
+                tmp.setPriority(CHANNEL_PROTOCOL, Multiplexer.PRIORITY_HIGH);
+                tmp.setPriority(CHANNEL_CHAT, Multiplexer.PRIORITY_LOW);
+                // Probes must not wait behind other traffic, or they measure the queue
+                tmp.setPriority(CHANNEL_PROBE, Multiplexer.PRIORITY_HIGH);
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-            mState = STATE_CONNECTED;
+            mmChannels = tmp;
+            mmMonitor = new LinkMonitor(new LinkMonitor.Listener() {
+                @Override
+                public void onLinkEstimate(LinkMonitor monitor) {
+                    LinkMonitor.Listener listener = mLinkListener;
+                    if (listener != null) {
+                        listener.onLinkEstimate(monitor);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public String getName() {
+            return "ConnectedTask";
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+            Multiplexer.Packet packet;
+            byte[] buffer;
 
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
+            if (mmChannels != null) {
+                mExecutor.execute(mmWriter);
+            }
+            mHandler.postDelayed(mmPing, PING_INTERVAL_MS);
+
+            // Keep listening to the InputStream while connected. Only this
+            // task's own flag is read, the service state is never locked here.
+            while (!mCancelled) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
+                    if (mmChannels == null) {
+                        throw new IOException("No streams");
+                    }
+                    // Read one whole message from either channel, the stream
+                    // may split or merge writes
+                    FFSTrace.begin("receive");
+                    try {
+                        packet = mmChannels.receive();
+                    } finally {
+                        FFSTrace.end();
+                    }
+                    buffer = packet.getPayload();
+                    mmMonitor.onReceived(buffer.length);
+                    mmStats.onMessageReceived(packet.getChannel() == CHANNEL_PROBE
+                            ? WireStats.TYPE_PROBE : WireStats.typeOf(buffer), buffer.length);
+
+                    if (packet.getChannel() == CHANNEL_PROBE) {
+                        // Answer pings through the writer, pongs only update the estimates
+                        byte[] pong = mmMonitor.onProbe(buffer);
+                        mmChannels.release();
+                        if (pong != null) {
+                            mmOutgoing.add(new Outgoing(CHANNEL_PROBE, pong));
+                        }
+                        continue;
+                    }
 
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
+                    // Send the obtained bytes to the UI Activity, and hand the
+                    // credit back only after the handler has dealt with them,
+                    // which keeps its queue within the window
+                    mHandler.obtainMessage(Constants.MESSAGE_READ, buffer.length, -1, buffer)
                             .sendToTarget();
+                    mHandler.post(mmRelease);
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    // A cancelled connection was closed on purpose, it was not lost
+                    if (!mCancelled) {
+                        Log.e(TAG, "disconnected", e);
+                        connectionLost(this);
+                    }
                     break;
                 }
             }
+            mmOutgoing.add(Outgoing.CLOSE);
         }
 
         /**
-         * Write to the connected OutStream.
+         * Queue a message for the connected OutStream. Never blocks, the
+         * writer sends it once the remote device has room.
          *
          * @param buffer The bytes to write
          */
         public void write(byte[] buffer) {
+            int channel = buffer[0] == FFSCodec.TYPE_TEXT ? CHANNEL_CHAT : CHANNEL_PROTOCOL;
+            mmOutgoing.add(new Outgoing(channel, buffer));
+        }
+
+        /**
+         * @return Messages queued for the writer, and the one it may be blocked on
+         */
+        int getWriteQueueDepth() {
+            return mmOutgoing.size() + mmChannels.getFrames().getSendQueueDepth();
+        }
+
+        /**
+         * Send one queued message, on the writer.
+         */
+        private void sendQueued(Outgoing message) {
+            if (message == Outgoing.PING) {
+                try {
+                    // Stamped only now, time spent in the queue is no round trip
+                    send(CHANNEL_PROBE, mmMonitor.newPing());
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception during ping", e);
+                }
+                return;
+            }
+            if (message.mChannel == CHANNEL_PROBE) {
+                try {
+                    send(CHANNEL_PROBE, message.mPayload);
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception during pong", e);
+                }
+                return;
+            }
+
+            FFSTrace.begin("write");
             try {
-                mmOutStream.write(buffer);
+                send(message.mChannel, message.mPayload);
 
                 // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
+                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, message.mPayload)
                         .sendToTarget();
             } catch (IOException e) {
                 Log.e(TAG, "Exception during write", e);
+            } finally {
+                FFSTrace.end();
             }
         }
 
+        /**
+         * Send on a channel and count it, stalls included.
+         */
+        private void send(int channel, byte[] buffer) throws IOException {
+            long start = System.nanoTime();
+            mmChannels.send(channel, buffer);
+            mmStats.onMessageSent(channel == CHANNEL_PROBE
+                    ? WireStats.TYPE_PROBE : WireStats.typeOf(buffer), buffer.length,
+                    System.nanoTime() - start);
+            mmMonitor.onSent(buffer.length);
+        }
+
         public void cancel() {
+            mCancelled = true;
+            mHandler.removeCallbacks(mmPing);
+            mmOutgoing.add(Outgoing.CLOSE);
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -531,4 +1039,21 @@ public class BluetoothChatService {
             }
         }
     }
+
+    /**
+     * A message waiting for the writer of a {@link ConnectedTask}.
+     */
+    private static class Outgoing {
+        // Ask the writer for a fresh ping, or to stop
+        static final Outgoing PING = new Outgoing(CHANNEL_PROBE, null);
+        static final Outgoing CLOSE = new Outgoing(-1, null);
+
+        final int mChannel;
+        final byte[] mPayload;
+
+        Outgoing(int channel, byte[] payload) {
+            mChannel = channel;
+            mPayload = payload;
+        }
+    }
 }
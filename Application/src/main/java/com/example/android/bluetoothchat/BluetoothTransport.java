@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import com.example.android.transport.Connection;
+import com.example.android.transport.ServerEndpoint;
+import com.example.android.transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over Bluetooth RFCOMM sockets. Addresses are Bluetooth
+ * hardware addresses.
+ */
+public class BluetoothTransport implements Transport {
+
+    private final BluetoothAdapter mAdapter;
+    private final UUID mUuid;
+    private final boolean mSecure;
+
+    /**
+     * @param adapter The local Bluetooth adapter
+     * @param uuid    UUID of the service record to listen on and connect to
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    public BluetoothTransport(BluetoothAdapter adapter, UUID uuid, boolean secure) {
+        mAdapter = adapter;
+        mUuid = uuid;
+        mSecure = secure;
+    }
+
+    @Override
+    public ServerEndpoint listen(String name) throws IOException {
+        final BluetoothServerSocket serverSocket;
+        if (mSecure) {
+            serverSocket = mAdapter.listenUsingRfcommWithServiceRecord(name, mUuid);
+        } else {
+            serverSocket = mAdapter.listenUsingInsecureRfcommWithServiceRecord(name, mUuid);
+        }
+
+        return new ServerEndpoint() {
+            @Override
+            public Connection accept() throws IOException {
+                return new BluetoothConnection(serverSocket.accept(), false);
+            }
+
+            @Override
+            public String getAddress() {
+                return mAdapter.getAddress();
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        // Get a BluetoothSocket for a connection with the given BluetoothDevice
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        BluetoothSocket socket;
+        if (mSecure) {
+            socket = device.createRfcommSocketToServiceRecord(mUuid);
+        } else {
+            socket = device.createInsecureRfcommSocketToServiceRecord(mUuid);
+        }
+        return new BluetoothConnection(socket, true);
+    }
+
+    private class BluetoothConnection implements Connection {
+        private final BluetoothSocket mSocket;
+        private final boolean mOutgoing;
+
+        BluetoothConnection(BluetoothSocket socket, boolean outgoing) {
+            mSocket = socket;
+            mOutgoing = outgoing;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!mOutgoing) {
+                return;
+            }
+
+            // Always cancel discovery because it will slow down a connection
+            mAdapter.cancelDiscovery();
+
+            // This is a blocking call and will only return on a
+            // successful connection or an exception
+            mSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mSocket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool running the accept, connect and connected tasks of
+ * {@link BluetoothChatService}, and the writer of a connection. Threads are
+ * reused across reconnects instead of creating a new one for every task, and
+ * idle threads go away after a while.
+ */
+class ConnectionExecutor extends ThreadPoolExecutor {
+
+    /**
+     * A task with a name, which the worker thread takes on while running it.
+     */
+    interface NamedTask extends Runnable {
+        String getName();
+    }
+
+    /**
+     * Lifecycle hooks, called on the worker thread around every task.
+     */
+    interface Hooks {
+        void onTaskStarted(String name);
+
+        void onTaskFinished(String name, Throwable t);
+    }
+
+    private static final int THREADS = 6;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final Hooks mHooks;
+
+    ConnectionExecutor(Hooks hooks) {
+        super(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "BluetoothChat-" + mCount.incrementAndGet());
+                    }
+                });
+        allowCoreThreadTimeOut(true);
+        mHooks = hooks;
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        String name = nameOf(r);
+        t.setName(name);
+        mHooks.onTaskStarted(name);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        mHooks.onTaskFinished(nameOf(r), t);
+        Thread.currentThread().setName("BluetoothChat-idle");
+    }
+
+    private static String nameOf(Runnable r) {
+        return r instanceof NamedTask ? ((NamedTask) r).getName() : r.toString();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.example.android.bluetoothchat.BluetoothChatService.STATE_CONNECTED;
+import static com.example.android.bluetoothchat.BluetoothChatService.STATE_CONNECTING;
+import static com.example.android.bluetoothchat.BluetoothChatService.STATE_LISTEN;
+import static com.example.android.bluetoothchat.BluetoothChatService.STATE_NONE;
+
+/**
+ * The connection state of {@link BluetoothChatService}, changed with
+ * compare-and-set so that readers never need a lock. Only the transitions in
+ * {@link #LEGAL} are allowed, anything else is refused and leaves the state
+ * unchanged.
+ */
+class ConnectionStateMachine {
+
+    // LEGAL[from][to], indexed by the STATE_* constants
+    private static final boolean[][] LEGAL = {
+            //            NONE   LISTEN CONNECTING CONNECTED
+            /* NONE */       {true, true, true, false},
+            /* LISTEN */     {true, true, true, true},
+            /* CONNECTING */ {true, true, true, true},
+            // A second connection never replaces the current one by itself
+            /* CONNECTED */  {true, true, true, false},
+    };
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_NONE);
+
+    static boolean isLegal(int from, int to) {
+        return LEGAL[from][to];
+    }
+
+    int get() {
+        return mState.get();
+    }
+
+    /**
+     * Move to the given state if that is legal from the current one.
+     *
+     * @return Whether the state changed
+     */
+    boolean moveTo(int to) {
+        while (true) {
+            int from = mState.get();
+            if (!isLegal(from, to)) {
+                return false;
+            }
+            if (mState.compareAndSet(from, to)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move from one given state to another, only if the current state still is
+     * the expected one.
+     *
+     * @return Whether the state changed
+     */
+    boolean compareAndSet(int from, int to) {
+        return isLegal(from, to) && mState.compareAndSet(from, to);
+    }
+
+    static String name(int state) {
+        switch (state) {
+            case STATE_NONE:
+                return "NONE";
+            case STATE_LISTEN:
+                return "LISTEN";
+            case STATE_CONNECTING:
+                return "CONNECTING";
+            case STATE_CONNECTED:
+                return "CONNECTED";
+            default:
+                return Integer.toString(state);
+        }
+    }
+}
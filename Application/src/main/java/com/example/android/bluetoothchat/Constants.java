@@ -27,9 +27,14 @@ public interface Constants {
     int MESSAGE_WRITE = 3;
     int MESSAGE_DEVICE_NAME = 4;
     int MESSAGE_TOAST = 5;
+    int MESSAGE_SESSION_STARTED = 6;
+    int MESSAGE_SESSION_FINISHED = 7;
+    int MESSAGE_SESSION_FAILED = 8;
 
     // Key names received from the BluetoothChatService Handler
     String DEVICE_NAME = "device_name";
     String TOAST = "toast";
+    String SESSION_ELAPSED = "session_elapsed";
+    String SESSION_THROUGHPUT = "session_throughput";
 
 }
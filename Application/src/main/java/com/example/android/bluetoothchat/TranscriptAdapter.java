@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The conversation transcript. Keeps the last {@link #DEFAULT_CAPACITY} lines
+ * in a ring, dropping the oldest one when full. Lines keep the raw values and
+ * are only turned into text when a row is bound, so lines that are never
+ * scrolled to are never formatted. Large numbers show as the start of their
+ * hex digits, a tap on the row shows them in full. Only used on the main
+ * thread.
+ */
+public class TranscriptAdapter extends RecyclerView.Adapter<TranscriptAdapter.ViewHolder> {
+
+    public static final int DEFAULT_CAPACITY = 500;
+
+    // Numbers up to this many bits are always shown in full, in decimal
+    private static final int SHORT_BITS = 64;
+
+    // Leading hex digits shown of a larger number until it is expanded
+    private static final int COLLAPSED_DIGITS = 8;
+
+    private final Entry[] mEntries;
+    private int mHead;
+    private int mSize;
+
+    public TranscriptAdapter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of lines kept
+     */
+    public TranscriptAdapter(int capacity) {
+        mEntries = new Entry[capacity];
+    }
+
+    public void add(Entry entry) {
+        if (mSize == mEntries.length) {
+            mEntries[mHead] = entry;
+            mHead = (mHead + 1) % mEntries.length;
+            notifyItemRemoved(0);
+        } else {
+            mEntries[(mHead + mSize) % mEntries.length] = entry;
+            mSize++;
+        }
+        notifyItemInserted(mSize - 1);
+    }
+
+    public void clear() {
+        Arrays.fill(mEntries, null);
+        mHead = 0;
+        mSize = 0;
+        notifyDataSetChanged();
+    }
+
+    private Entry get(int position) {
+        return mEntries[(mHead + position) % mEntries.length];
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.message, parent, false);
+        return new ViewHolder((TextView) view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        holder.mmText.setText(get(position).format());
+    }
+
+    @Override
+    public int getItemCount() {
+        return mSize;
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        private final TextView mmText;
+
+        ViewHolder(TextView view) {
+            super(view);
+            mmText = view;
+            view.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View v) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            Entry entry = get(position);
+            if (entry.isExpandable()) {
+                entry.toggle();
+                notifyItemChanged(position);
+            }
+        }
+    }
+
+    /**
+     * One transcript line, built from text and values. Values are formatted
+     * when the line is shown, and the text is kept until it is expanded or
+     * collapsed.
+     */
+    public static class Entry {
+        private final ArrayList<Object> mParts = new ArrayList<>();
+        private boolean mExpandable;
+        private boolean mExpanded;
+        private CharSequence mFormatted;
+
+        public Entry(String prefix) {
+            mParts.add(prefix);
+        }
+
+        public Entry text(String text) {
+            mParts.add(text);
+            return this;
+        }
+
+        /**
+         * Append a value, BigIntegers are formatted depending on their size.
+         */
+        public Entry value(Object value) {
+            mParts.add(value);
+            if (value instanceof BigInteger && ((BigInteger) value).bitLength() > SHORT_BITS) {
+                mExpandable = true;
+            }
+            return this;
+        }
+
+        boolean isExpandable() {
+            return mExpandable;
+        }
+
+        void toggle() {
+            mExpanded = !mExpanded;
+            mFormatted = null;
+        }
+
+        CharSequence format() {
+            if (mFormatted == null) {
+                StringBuilder text = new StringBuilder();
+                for (Object part : mParts) {
+                    if (part instanceof BigInteger) {
+                        appendNumber(text, (BigInteger) part, mExpanded);
+                    } else {
+                        text.append(part);
+                    }
+                }
+                mFormatted = text.toString();
+            }
+            return mFormatted;
+        }
+
+        private static void appendNumber(StringBuilder text, BigInteger value, boolean expanded) {
+            int bits = value.bitLength();
+            if (bits <= SHORT_BITS) {
+                text.append(value);
+            } else if (expanded) {
+                text.append("0x").append(value.toString(16));
+            } else {
+                // Only the leading digits are converted, not the whole number
+                int digits = (bits + 3) / 4;
+                text.append("0x")
+                        .append(value.shiftRight(4 * (digits - COLLAPSED_DIGITS)).toString(16))
+                        .append("... (").append(bits).append(" bits)");
+            }
+        }
+    }
+}
@@ -19,8 +19,13 @@ package com.example.android.common.activities;
 import android.os.Bundle;
 import androidx.fragment.app.FragmentActivity;
 
+import com.example.android.common.logger.AsyncLogNode;
 import com.example.android.common.logger.Log;
 import com.example.android.common.logger.LogWrapper;
+import com.example.android.common.logger.TraceLogNode;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Base launcher activity, to handle most of the common plumbing for samples.
@@ -29,6 +34,9 @@ public class SampleActivityBase extends FragmentActivity {
 
     public static final String TAG = "SampleActivityBase";
 
+    // Trace kept in the app's files for post-mortems, see TraceDecoder
+    public static final String TRACE_FILE = "trace.bin";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -37,5 +45,30 @@ public class SampleActivityBase extends FragmentActivity {
     @Override
     protected  void onStart() {
         super.onStart();
+        initializeLogging();
+    }
+
+    /** Set up targets to receive log data */
+    public void initializeLogging() {
+        if (Log.getLogNode() != null) {
+            return;
+        }
+        // Using Log, front-end to the logging chain, emulates android.util.log method signatures.
+        // The trace file, if it can be opened, comes first and records on the calling thread, so
+        // it holds everything logged up to a crash. The rest of the chain, which wraps Android's
+        // native log framework, runs on a background thread and never holds up the caller.
+        LogWrapper logWrapper = new LogWrapper();
+        AsyncLogNode asyncLogNode = new AsyncLogNode(logWrapper);
+
+        try {
+            TraceLogNode traceLogNode = new TraceLogNode(new File(getFilesDir(), TRACE_FILE));
+            traceLogNode.setNext(asyncLogNode);
+            Log.setLogNode(traceLogNode);
+        } catch (IOException e) {
+            Log.setLogNode(asyncLogNode);
+            Log.w(TAG, "No trace file", e);
+        }
+
+        Log.i(TAG, "Ready");
     }
 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link LogNode} that hands log data over to a background thread, which passes it on to the
+ * rest of the chain. Logging from an I/O thread then only costs a few atomic operations, no
+ * matter how slow the nodes further down are.
+ *
+ * <p>Records go into a ring of preallocated slots that any number of threads can fill without
+ * taking a lock, each slot carrying a sequence number that tells whose turn it is. When the
+ * ring is full the record is either dropped and counted, or the caller waits for a free slot,
+ * see {@link Policy}.</p>
+ */
+public class AsyncLogNode implements LogNode {
+
+    /**
+     * What to do with a record when the ring is full.
+     */
+    public enum Policy {
+        /** Drop the record and count it, the caller never waits. */
+        DROP,
+        /** Wait until the background thread has made room. */
+        BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final String TAG = "AsyncLogNode";
+
+    // How long the background thread sleeps at most when there is nothing to do
+    private static final long IDLE_NANOS = 100 * 1000 * 1000;
+
+    // How long a blocked caller waits before checking for room again
+    private static final long BLOCK_NANOS = 100 * 1000;
+
+    private static class Record {
+        int mPriority;
+        String mTag;
+        String mMsg;
+        Throwable mTr;
+    }
+
+    private final Record[] mRecords;
+    private final int mMask;
+    private final Policy mPolicy;
+
+    // Slot i is free for the writer of position p when its sequence is p,
+    // and holds that record for the reader when it is p + 1
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    private long mHead;
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private long mDroppedReported;
+
+    private final Thread mDrainer;
+    private volatile boolean mIdle;
+
+    // The next LogNode in the chain, only called from the background thread.
+    private volatile LogNode mNext;
+
+    /**
+     * Takes the "next" LogNode as a parameter, to simplify chaining.
+     *
+     * @param next The next LogNode in the pipeline.
+     */
+    public AsyncLogNode(LogNode next) {
+        this(next, DEFAULT_CAPACITY, Policy.DROP);
+    }
+
+    /**
+     * @param next     The next LogNode in the pipeline.
+     * @param capacity Number of records that can wait, rounded up to a power of two.
+     * @param policy   What to do when that many records are waiting.
+     */
+    public AsyncLogNode(LogNode next, int capacity, Policy policy) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mRecords = new Record[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mRecords[i] = new Record();
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+        mPolicy = policy;
+        mNext = next;
+
+        mDrainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG);
+        mDrainer.setDaemon(true);
+        mDrainer.setPriority(Thread.MIN_PRIORITY);
+        mDrainer.start();
+    }
+
+    /**
+     * Queues the log data for the background thread.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param msg The actual message to be logged. The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        long position;
+        while (true) {
+            position = mTail.get();
+            long sequence = mSequences.get((int) position & mMask);
+            if (sequence == position) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // Full, the reader has not freed this slot yet. The background thread
+                // itself never waits, it would wait for itself.
+                if (mPolicy == Policy.DROP || Thread.currentThread() == mDrainer) {
+                    mDropped.incrementAndGet();
+                    return;
+                }
+                wakeDrainer();
+                LockSupport.parkNanos(BLOCK_NANOS);
+            }
+            // Otherwise another writer took this position, try the next one
+        }
+
+        int index = (int) position & mMask;
+        Record record = mRecords[index];
+        record.mPriority = priority;
+        record.mTag = tag;
+        record.mMsg = msg;
+        record.mTr = tr;
+        mSequences.set(index, position + 1);
+
+        if (mIdle) {
+            wakeDrainer();
+        }
+    }
+
+    /**
+     * Returns the number of records dropped because the ring was full.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Returns the next LogNode in the chain.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to.
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    private void wakeDrainer() {
+        LockSupport.unpark(mDrainer);
+    }
+
+    /**
+     * Body of the background thread: pass every record on, then sleep until woken.
+     */
+    private void drain() {
+        while (true) {
+            if (!drainAvailable()) {
+                mIdle = true;
+                // Checked again, a writer may have missed the flag
+                if (!hasRecord()) {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+                mIdle = false;
+            }
+        }
+    }
+
+    private boolean hasRecord() {
+        return mSequences.get((int) mHead & mMask) == mHead + 1;
+    }
+
+    private boolean drainAvailable() {
+        boolean any = false;
+        while (hasRecord()) {
+            int index = (int) mHead & mMask;
+            Record record = mRecords[index];
+            int priority = record.mPriority;
+            String tag = record.mTag;
+            String msg = record.mMsg;
+            Throwable tr = record.mTr;
+            record.mTag = null;
+            record.mMsg = null;
+            record.mTr = null;
+            mSequences.set(index, mHead + mRecords.length);
+            mHead++;
+            any = true;
+
+            forward(priority, tag, msg, tr);
+        }
+
+        long dropped = mDropped.get();
+        if (dropped != mDroppedReported) {
+            forward(Log.WARN, TAG, (dropped - mDroppedReported) + " log records dropped", null);
+            mDroppedReported = dropped;
+        }
+        return any;
+    }
+
+    private void forward(int priority, String tag, String msg, Throwable tr) {
+        LogNode next = mNext;
+        if (next != null) {
+            try {
+                next.println(priority, tag, msg, tr);
+            } catch (RuntimeException e) {
+                // Nowhere to report it, but the records after it still get through
+            }
+        }
+    }
+}
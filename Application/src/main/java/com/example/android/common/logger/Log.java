@@ -15,6 +15,9 @@
  */
 package com.example.android.common.logger;
 
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Helper class for a list (or tree) of LoggerNodes.
  *
@@ -22,6 +25,11 @@ package com.example.android.common.logger;
  * an instance of it can function as a drop-in replacement for {@link android.util.Log}.
  * Most of the methods in this class server only to map a method call in Log to its equivalent
  * in LogNode.</p>
+ *
+ * <p>Every tag can be given a minimum level, see {@link #setLevel(String, int)}. The overloads
+ * taking a format and arguments, or a {@link MessageSupplier}, check it before building the
+ * message, so a suppressed call costs a map lookup and no string. A {@link Throwable} as the
+ * last argument is the exception, not a format argument.</p>
  */
 public class Log {
     // Grabbing the native values from Android's native logging facilities,
@@ -37,6 +45,17 @@ public class Log {
     // Stores the beginning of the LogNode topology.
     private static LogNode mLogNode;
 
+    // Minimum level of every tag that has one, and of all others.
+    private static final ConcurrentHashMap<String, Integer> mLevels = new ConcurrentHashMap<>();
+    private static volatile int mDefaultLevel = VERBOSE;
+
+    /**
+     * Builds a message only once it is known to be logged.
+     */
+    public interface MessageSupplier {
+        String get();
+    }
+
     /**
      * Returns the next LogNode in the linked list.
      */
@@ -51,6 +70,34 @@ public class Log {
         mLogNode = node;
     }
 
+    /**
+     * Sets the lowest priority logged for a tag.
+     *
+     * @param level Log level such as {@link #DEBUG}, or {@link #NONE} to log everything.
+     */
+    public static void setLevel(String tag, int level) {
+        mLevels.put(tag, level);
+    }
+
+    /**
+     * Sets the lowest priority logged for tags without a level of their own.
+     */
+    public static void setDefaultLevel(int level) {
+        mDefaultLevel = level;
+    }
+
+    /**
+     * Returns whether data of the given priority and tag reaches the LogNode. Useful to
+     * guard work the overloads below cannot defer, such as boxing a large number.
+     */
+    public static boolean isLoggable(String tag, int priority) {
+        if (mLogNode == null) {
+            return false;
+        }
+        Integer level = mLevels.isEmpty() || tag == null ? null : mLevels.get(tag);
+        return priority >= (level == null ? mDefaultLevel : level);
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -62,11 +109,42 @@ public class Log {
      *           to extract and print useful information.
      */
     public static void println(int priority, String tag, String msg, Throwable tr) {
-        if (mLogNode != null) {
+        if (isLoggable(tag, priority)) {
             mLogNode.println(priority, tag, msg, tr);
         }
     }
 
+    /**
+     * Formats and prints a message with {@link String#format}. Callers check
+     * {@link #isLoggable} first, so not even the argument array is built for suppressed data.
+     *
+     * @param priority Log level of the data being logged. Verbose, Error, etc.
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param tr An exception to print along, or null.
+     * @param format The format of the message.
+     * @param args The arguments of the format.
+     */
+    private static void printf(int priority, String tag, Throwable tr, String format,
+                               Object... args) {
+        LogNode node = mLogNode;
+        if (node != null) {
+            node.println(priority, tag, String.format(Locale.US, format, args), tr);
+        }
+    }
+
+    /**
+     * Prints a message built by the supplier, which is only called if it will be logged.
+     *
+     * @param priority Log level of the data being logged. Verbose, Error, etc.
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg Builds the message to be logged.
+     */
+    public static void println(int priority, String tag, MessageSupplier msg) {
+        if (isLoggable(tag, priority)) {
+            mLogNode.println(priority, tag, msg.get(), null);
+        }
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -101,6 +179,43 @@ public class Log {
         v(tag, msg, null);
     }
 
+    /**
+     * Prints a message at VERBOSE priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg The argument of the format.
+     */
+    public static void v(String tag, String format, Object arg) {
+        if (isLoggable(tag, VERBOSE)) {
+            printf(VERBOSE, tag, null, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg1 The first argument of the format.
+     * @param arg2 The second argument of the format.
+     */
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, VERBOSE)) {
+            printf(VERBOSE, tag, null, format, arg1, arg2);
+        }
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, built only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg Builds the message to be logged.
+     */
+    public static void v(String tag, MessageSupplier msg) {
+        println(VERBOSE, tag, msg);
+    }
+
 
     /**
      * Prints a message at DEBUG priority.
@@ -124,6 +239,43 @@ public class Log {
         d(tag, msg, null);
     }
 
+    /**
+     * Prints a message at DEBUG priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg The argument of the format.
+     */
+    public static void d(String tag, String format, Object arg) {
+        if (isLoggable(tag, DEBUG)) {
+            printf(DEBUG, tag, null, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg1 The first argument of the format.
+     * @param arg2 The second argument of the format.
+     */
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, DEBUG)) {
+            printf(DEBUG, tag, null, format, arg1, arg2);
+        }
+    }
+
+    /**
+     * Prints a message at DEBUG priority, built only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param msg Builds the message to be logged.
+     */
+    public static void d(String tag, MessageSupplier msg) {
+        println(DEBUG, tag, msg);
+    }
+
     /**
      * Prints a message at INFO priority.
      *
@@ -146,6 +298,33 @@ public class Log {
         i(tag, msg, null);
     }
 
+    /**
+     * Prints a message at INFO priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg The argument of the format.
+     */
+    public static void i(String tag, String format, Object arg) {
+        if (isLoggable(tag, INFO)) {
+            printf(INFO, tag, null, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at INFO priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg1 The first argument of the format.
+     * @param arg2 The second argument of the format.
+     */
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, INFO)) {
+            printf(INFO, tag, null, format, arg1, arg2);
+        }
+    }
+
     /**
      * Prints a message at WARN priority.
      *
@@ -168,6 +347,48 @@ public class Log {
         w(tag, msg, null);
     }
 
+    /**
+     * Prints a message at WARN priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg The argument of the format.
+     */
+    public static void w(String tag, String format, Object arg) {
+        if (isLoggable(tag, WARN)) {
+            printf(WARN, tag, null, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at WARN priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg1 The first argument of the format.
+     * @param arg2 The second argument of the format.
+     */
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, WARN)) {
+            printf(WARN, tag, null, format, arg1, arg2);
+        }
+    }
+
+    /**
+     * Prints a message at WARN priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg The argument of the format.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void w(String tag, String format, Object arg, Throwable tr) {
+        if (isLoggable(tag, WARN)) {
+            printf(WARN, tag, tr, format, arg);
+        }
+    }
+
     /**
      * Prints a message at WARN priority.
      *
@@ -201,6 +422,48 @@ public class Log {
         e(tag, msg, null);
     }
 
+    /**
+     * Prints a message at ERROR priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg The argument of the format.
+     */
+    public static void e(String tag, String format, Object arg) {
+        if (isLoggable(tag, ERROR)) {
+            printf(ERROR, tag, null, format, arg);
+        }
+    }
+
+    /**
+     * Prints a message at ERROR priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg1 The first argument of the format.
+     * @param arg2 The second argument of the format.
+     */
+    public static void e(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, ERROR)) {
+            printf(ERROR, tag, null, format, arg1, arg2);
+        }
+    }
+
+    /**
+     * Prints a message at ERROR priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The format of the message, see {@link String#format}.
+     * @param arg The argument of the format.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    public static void e(String tag, String format, Object arg, Throwable tr) {
+        if (isLoggable(tag, ERROR)) {
+            printf(ERROR, tag, tr, format, arg);
+        }
+    }
+
     /**
      * Prints a message at ASSERT priority.
      *
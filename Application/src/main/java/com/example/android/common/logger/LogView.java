@@ -15,15 +15,71 @@
  */
 package com.example.android.common.logger;
 
-import android.app.Activity;
 import android.content.Context;
+import android.text.Editable;
 import android.util.*;
 import android.widget.TextView;
 
 /** Simple TextView which is used to output log data received through the LogNode interface.
+ * Shows only the last {@link #MAX_LINES} lines. Lines are queued from any thread and appended
+ * to the shown text at most once per frame, trimming the oldest from the front, so the cost of
+ * a line does not grow with the log.
 */
 public class LogView extends TextView implements LogNode {
 
+    // Number of most recent lines kept and shown
+    public static final int MAX_LINES = 300;
+
+    // Ring of lines not shown yet, guarded by itself, as lines come in from any thread
+    private final String[] mLines = new String[MAX_LINES];
+    private int mHead;
+    private int mSize;
+    private boolean mRefreshPending;
+
+    // Main thread only: the new lines of a refresh, and the length of every shown line
+    private final StringBuilder mText = new StringBuilder();
+    private final int[] mShownLengths = new int[MAX_LINES];
+    private int mShownHead;
+    private int mShownSize;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mText.setLength(0);
+            int droppedLength = 0;
+            synchronized (mLines) {
+                // Make room for the new lines by dropping the oldest shown
+                int dropped = Math.max(0, mShownSize + mSize - MAX_LINES);
+                for (int i = 0; i < dropped; i++) {
+                    droppedLength += mShownLengths[mShownHead];
+                    mShownHead = (mShownHead + 1) % MAX_LINES;
+                }
+                mShownSize -= dropped;
+                for (int i = 0; i < mSize; i++) {
+                    int index = (mHead + i) % MAX_LINES;
+                    mText.append('\n').append(mLines[index]);
+                    mShownLengths[(mShownHead + mShownSize) % MAX_LINES] =
+                            mLines[index].length() + 1;
+                    mShownSize++;
+                    mLines[index] = null;
+                }
+                mHead = 0;
+                mSize = 0;
+                mRefreshPending = false;
+            }
+
+            Editable text = getEditableText();
+            if (text == null) {
+                setText("", BufferType.EDITABLE);
+                text = getEditableText();
+            }
+            if (droppedLength > 0) {
+                text.delete(0, droppedLength);
+            }
+            text.append(mText);
+        }
+    };
+
     public LogView(Context context) {
         super(context);
     }
@@ -90,15 +146,8 @@ public class LogView extends TextView implements LogNode {
         appendIfNotNull(outputBuilder, msg, delimiter);
         appendIfNotNull(outputBuilder, exceptionStr, delimiter);
 
-        // In case this was originally called from an AsyncTask or some other off-UI thread,
-        // make sure the update occurs within the UI thread.
-        ((Activity) getContext()).runOnUiThread( (new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // Display the text we just generated within the LogView.
-                appendToLog(outputBuilder.toString());
-            }
-        })));
+        // Safe from any thread, the text itself is only updated on the UI thread.
+        appendToLog(outputBuilder.toString());
 
         if (mNext != null) {
             mNext.println(priority, tag, msg, tr);
@@ -136,9 +185,24 @@ public class LogView extends TextView implements LogNode {
     // The next LogNode in the chain.
     LogNode mNext;
 
-    /** Outputs the string as a new line of log data in the LogView. */
+    /** Outputs the string as a new line of log data in the LogView, on the next frame.
+     * Can be called from any thread. */
     public void appendToLog(String s) {
-        append("\n" + s);
+        boolean schedule;
+        synchronized (mLines) {
+            if (mSize == MAX_LINES) {
+                mLines[mHead] = s;
+                mHead = (mHead + 1) % MAX_LINES;
+            } else {
+                mLines[(mHead + mSize) % MAX_LINES] = s;
+                mSize++;
+            }
+            schedule = !mRefreshPending;
+            mRefreshPending = true;
+        }
+        if (schedule) {
+            postOnAnimation(mRefresh);
+        }
     }
 
 
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Turns a file written by {@link TraceLogNode} back into text, oldest record first. Uses no
+ * Android classes, so it runs on a desktop with a file pulled from a device:
+ * {@code java com.example.android.common.logger.TraceDecoder trace.bin}
+ */
+public class TraceDecoder {
+
+    private TraceDecoder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TraceDecoder <trace file>");
+            System.exit(2);
+        }
+        decode(new File(args[0]), System.out);
+    }
+
+    /**
+     * Prints every intact record of the trace file, one per line.
+     *
+     * @return Number of records printed.
+     */
+    public static int decode(File file, PrintStream out) throws IOException {
+        ByteBuffer map = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (map.capacity() < TraceLogNode.SLOTS_OFFSET || map.getInt(0) != TraceLogNode.MAGIC) {
+            throw new IOException("Not a trace file");
+        }
+        if (map.getInt(4) != TraceLogNode.VERSION || map.getInt(8) != TraceLogNode.SLOT_SIZE) {
+            throw new IOException("Unsupported trace version " + map.getInt(4));
+        }
+        int slots = map.getInt(12);
+        if (map.capacity() < TraceLogNode.SLOTS_OFFSET + (long) slots * TraceLogNode.SLOT_SIZE) {
+            throw new IOException("Truncated trace file");
+        }
+
+        String[] tags = new String[Math.min(map.getInt(TraceLogNode.TAG_COUNT_OFFSET),
+                TraceLogNode.MAX_TAGS)];
+        for (int i = 0; i < tags.length; i++) {
+            int offset = TraceLogNode.TAGS_OFFSET + i * TraceLogNode.TAG_SIZE;
+            tags[i] = new String(map.array(), offset + 1, map.get(offset) & 0xFF,
+                    StandardCharsets.UTF_8);
+        }
+
+        // A slot is intact if its sequence number belongs in it
+        long[] sequences = new long[slots];
+        int count = 0;
+        for (int i = 0; i < slots; i++) {
+            long sequence = map.getLong(offset(i));
+            if (sequence >= 0 && sequence % slots == i) {
+                sequences[count++] = sequence;
+            }
+        }
+        sequences = Arrays.copyOf(sequences, count);
+        Arrays.sort(sequences);
+
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        for (long sequence : sequences) {
+            int offset = offset((int) (sequence % slots));
+            long micros = map.getLong(offset + TraceLogNode.SLOT_TIME);
+            int priority = map.get(offset + TraceLogNode.SLOT_PRIORITY);
+            int length = map.get(offset + TraceLogNode.SLOT_LENGTH) & 0xFF;
+            int tag = map.getShort(offset + TraceLogNode.SLOT_TAG) & 0xFFFF;
+            String message = new String(map.array(), offset + TraceLogNode.SLOT_MESSAGE,
+                    Math.min(length, TraceLogNode.MAX_MESSAGE), StandardCharsets.UTF_8);
+
+            out.printf(Locale.US, "%s%03d %c/%s: %s%n", time.format(new Date(micros / 1000)),
+                    micros % 1000, priorityLetter(priority), tag < tags.length ? tags[tag] : "?",
+                    message);
+        }
+        return count;
+    }
+
+    private static int offset(int slot) {
+        return TraceLogNode.SLOTS_OFFSET + slot * TraceLogNode.SLOT_SIZE;
+    }
+
+    private static char priorityLetter(int priority) {
+        // The values of android.util.Log, spelled out to not need Android here
+        switch (priority) {
+            case 2:
+                return 'V';
+            case 3:
+                return 'D';
+            case 4:
+                return 'I';
+            case 5:
+                return 'W';
+            case 6:
+                return 'E';
+            case 7:
+                return 'A';
+            default:
+                return '-';
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link LogNode} that keeps the most recent log data in a memory-mapped file of fixed size.
+ * Writing a record is a few stores into the mapping, and what was written survives a crash of
+ * the app, as it is already in the page cache. {@link TraceDecoder} turns the file back into
+ * text. Put it at the head of the chain, ahead of an {@link AsyncLogNode}, so a record is in the
+ * file before the call that logged it returns.
+ *
+ * <p>The file starts with a header, then a table of the tags seen, then a circle of slots of
+ * {@link #SLOT_SIZE} bytes. A slot holds one record: its sequence number, the time in
+ * microseconds since the epoch, the priority, the tag as an index into the table, and the
+ * message in UTF-8, cut to fit on a character boundary. The sequence number is written last,
+ * so a record torn by a crash is recognized and skipped. Reopening a file continues after its
+ * last record.</p>
+ */
+public class TraceLogNode implements LogNode, Closeable {
+
+    public static final int MAGIC = 0x46465354; // "FFST"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_SLOTS = 8192;
+
+    // Header: magic, version, slot size, slot count, then the tag count
+    static final int HEADER_SIZE = 32;
+    static final int TAG_COUNT_OFFSET = 16;
+
+    // Tag table: a length byte and up to 31 bytes of UTF-8 per tag
+    static final int MAX_TAGS = 256;
+    static final int TAG_SIZE = 32;
+    static final int TAGS_OFFSET = HEADER_SIZE;
+    static final int SLOTS_OFFSET = TAGS_OFFSET + MAX_TAGS * TAG_SIZE;
+
+    // Slot: sequence, time, priority, message length, tag index, message
+    public static final int SLOT_SIZE = 128;
+    static final int SLOT_TIME = 8;
+    static final int SLOT_PRIORITY = 16;
+    static final int SLOT_LENGTH = 17;
+    static final int SLOT_TAG = 18;
+    static final int SLOT_MESSAGE = 20;
+    static final int MAX_MESSAGE = SLOT_SIZE - SLOT_MESSAGE;
+
+    // Sequence of a slot never written, or being written right now
+    static final long NO_SEQUENCE = -1;
+
+    // Tag index of a tag that did not fit into the table
+    static final int UNKNOWN_TAG = 0xFFFF;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMap;
+    private final int mSlots;
+    private final AtomicLong mNextSequence;
+    private final HashMap<String, Integer> mTags = new HashMap<>();
+
+    // Wall clock time in microseconds at nanoTime mBaseNanos
+    private final long mBaseMicros;
+    private final long mBaseNanos;
+
+    // The next LogNode in the chain.
+    private LogNode mNext;
+
+    public TraceLogNode(File file) throws IOException {
+        this(file, DEFAULT_SLOTS);
+    }
+
+    /**
+     * Opens the trace file, creating it if needed. An existing file made with a different
+     * number of slots is started over.
+     *
+     * @param file  The trace file.
+     * @param slots Number of records the file holds.
+     */
+    public TraceLogNode(File file, int slots) throws IOException {
+        mSlots = slots;
+        mFile = new RandomAccessFile(file, "rw");
+        long size = SLOTS_OFFSET + (long) slots * SLOT_SIZE;
+        boolean reuse = mFile.length() == size;
+        mFile.setLength(size);
+        mMap = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        if (reuse && mMap.getInt(0) == MAGIC && mMap.getInt(4) == VERSION
+                && mMap.getInt(8) == SLOT_SIZE && mMap.getInt(12) == slots) {
+            loadTags();
+        } else {
+            mMap.putInt(0, MAGIC);
+            mMap.putInt(4, VERSION);
+            mMap.putInt(8, SLOT_SIZE);
+            mMap.putInt(12, slots);
+            mMap.putInt(TAG_COUNT_OFFSET, 0);
+            for (int i = 0; i < slots; i++) {
+                mMap.putLong(slotOffset(i), NO_SEQUENCE);
+            }
+        }
+        mNextSequence = new AtomicLong(lastSequence() + 1);
+
+        mBaseMicros = System.currentTimeMillis() * 1000;
+        mBaseNanos = System.nanoTime();
+    }
+
+    /**
+     * Records the log data, then passes it on.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param msg The actual message to be logged. The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        String text = msg == null ? "" : msg;
+        if (tr != null) {
+            // The whole stack trace would not fit, the exception itself tells the most
+            text += (text.isEmpty() ? "" : ": ") + tr;
+        }
+        record(priority, tag, text);
+
+        if (mNext != null) {
+            mNext.println(priority, tag, msg, tr);
+        }
+    }
+
+    /**
+     * Writes one record. Safe to call from any thread.
+     */
+    public void record(int priority, String tag, String msg) {
+        int tagIndex = tagIndex(tag);
+        long micros = mBaseMicros + (System.nanoTime() - mBaseNanos) / 1000;
+
+        long sequence = mNextSequence.getAndIncrement();
+        int offset = slotOffset((int) (sequence % mSlots));
+        // Each writer has its own slot, so the absolute puts do not get in each other's way
+        mMap.putLong(offset, NO_SEQUENCE);
+        mMap.putLong(offset + SLOT_TIME, micros);
+        mMap.put(offset + SLOT_PRIORITY, (byte) priority);
+        mMap.putShort(offset + SLOT_TAG, (short) tagIndex);
+        int length = encode(msg, offset + SLOT_MESSAGE);
+        mMap.put(offset + SLOT_LENGTH, (byte) length);
+        mMap.putLong(offset, sequence);
+    }
+
+    /**
+     * Writes everything recorded so far to the storage device, which survives even losing
+     * power. Not needed to survive a crash of the app.
+     */
+    public void force() {
+        mMap.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mMap.force();
+        mFile.close();
+    }
+
+    /**
+     * Returns the next LogNode in the chain.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to.
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    private static int slotOffset(int slot) {
+        return SLOTS_OFFSET + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Encodes the message as UTF-8 straight into its slot, so nothing is allocated. Stops
+     * before the first character that does not fit whole, the decoder never sees half of one.
+     *
+     * @return Number of bytes written.
+     */
+    private int encode(String msg, int offset) {
+        int length = 0;
+        for (int i = 0; i < msg.length(); i++) {
+            int c = msg.charAt(i);
+            int size;
+            if (c < 0x80) {
+                size = 1;
+            } else if (c < 0x800) {
+                size = 2;
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < msg.length()
+                    && Character.isLowSurrogate(msg.charAt(i + 1))) {
+                size = 4;
+            } else if (Character.isSurrogate((char) c)) {
+                // Unpaired, written as '?' like String.getBytes does
+                c = '?';
+                size = 1;
+            } else {
+                size = 3;
+            }
+            if (length + size > MAX_MESSAGE) {
+                break;
+            }
+            int at = offset + length;
+            switch (size) {
+                case 1:
+                    mMap.put(at, (byte) c);
+                    break;
+                case 2:
+                    mMap.put(at, (byte) (0xC0 | c >> 6));
+                    mMap.put(at + 1, (byte) (0x80 | c & 0x3F));
+                    break;
+                case 3:
+                    mMap.put(at, (byte) (0xE0 | c >> 12));
+                    mMap.put(at + 1, (byte) (0x80 | c >> 6 & 0x3F));
+                    mMap.put(at + 2, (byte) (0x80 | c & 0x3F));
+                    break;
+                default:
+                    int codePoint = Character.toCodePoint((char) c, msg.charAt(++i));
+                    mMap.put(at, (byte) (0xF0 | codePoint >> 18));
+                    mMap.put(at + 1, (byte) (0x80 | codePoint >> 12 & 0x3F));
+                    mMap.put(at + 2, (byte) (0x80 | codePoint >> 6 & 0x3F));
+                    mMap.put(at + 3, (byte) (0x80 | codePoint & 0x3F));
+                    break;
+            }
+            length += size;
+        }
+        return length;
+    }
+
+    private int tagIndex(String tag) {
+        if (tag == null) {
+            tag = "";
+        }
+        synchronized (mTags) {
+            Integer index = mTags.get(tag);
+            if (index != null) {
+                return index;
+            }
+            int count = mTags.size();
+            if (count == MAX_TAGS) {
+                return UNKNOWN_TAG;
+            }
+            byte[] name = tag.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(name.length, TAG_SIZE - 1);
+            int offset = TAGS_OFFSET + count * TAG_SIZE;
+            mMap.put(offset, (byte) length);
+            for (int i = 0; i < length; i++) {
+                mMap.put(offset + 1 + i, name[i]);
+            }
+            // Counted only once the name is in place, as the decoder trusts the count
+            mMap.putInt(TAG_COUNT_OFFSET, count + 1);
+            mTags.put(tag, count);
+            return count;
+        }
+    }
+
+    private void loadTags() {
+        int count = Math.min(mMap.getInt(TAG_COUNT_OFFSET), MAX_TAGS);
+        for (int i = 0; i < count; i++) {
+            int offset = TAGS_OFFSET + i * TAG_SIZE;
+            byte[] name = new byte[mMap.get(offset) & 0xFF];
+            for (int j = 0; j < name.length; j++) {
+                name[j] = mMap.get(offset + 1 + j);
+            }
+            mTags.put(new String(name, StandardCharsets.UTF_8), i);
+        }
+    }
+
+    private long lastSequence() {
+        long last = NO_SEQUENCE;
+        for (int i = 0; i < mSlots; i++) {
+            last = Math.max(last, mMap.getLong(slotOffset(i)));
+        }
+        return last;
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.android.ffs;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Encoding of the messages exchanged during identification. The first byte of
+ * every payload is a type tag, the rest depends on the type.
+ */
+public class FFSCodec {
+
+    // Payload type tags
+    public static final byte TYPE_TEXT = 0b00000000;
+    public static final byte TYPE_BIG_INTEGER = 0b00000001;
+    public static final byte TYPE_BOOLEAN = 0b00000010;
+    public static final byte TYPE_SESSION = 0b00000011;
+    public static final byte TYPE_KEY_ID = 0b00000100;
+    public static final byte TYPE_IDENTITY = 0b00000101;
+    public static final byte TYPE_COMMITMENT = 0b00000110;
+    public static final byte TYPE_TICKET = 0b00000111;
+
+    // Flags of a session message
+    public static final int SESSION_RESUME = 1; // prover asks to continue a session
+    public static final int SESSION_KNOWN = 2;  // verifier still has that session
+
+    // Tag, flags, 8 byte session id and 4 byte round count
+    public static final int SESSION_LENGTH = 14;
+
+    // Bytes of a public key fingerprint, see FFSKeyCache
+    public static final int FINGERPRINT_LENGTH = 16;
+
+    // Bytes of a hashed commitment to x
+    public static final int COMMITMENT_LENGTH = 16;
+
+    // Tag, accepted flag and 4 byte round count, see FFSTicketStore
+    public static final int TICKET_REPLY_LENGTH = 6;
+
+    private FFSCodec() {
+    }
+
+    public static ArrayList<BigInteger> toBigIntegerArray(byte[] bytes) {
+        ArrayList<BigInteger> data = new ArrayList<>();
+
+        for (int i = 1; i + 1 < bytes.length; ) {
+            int length = bytes[i] * 128 + bytes[i + 1];
+            byte[] intBytes = new byte[length];
+
+            i += 2;
+
+            System.arraycopy(bytes, i, intBytes, 0, length);
+            data.add(new BigInteger(intBytes));
+
+            i += length;
+        }
+
+        return data;
+    }
+
+    public static byte[] toByteArray(ArrayList<BigInteger> ints) {
+        ArrayList<byte[]> data = new ArrayList<>();
+        int length = 1;
+
+        for (BigInteger bigInteger : ints) {
+            byte[] send = bigInteger.toByteArray();
+            data.add(send);
+            length += send.length + 2;
+        }
+
+        byte[] bytes = new byte[length];
+        bytes[0] = TYPE_BIG_INTEGER;
+        int pos = 1;
+
+        for (byte[] d : data) {
+            bytes[pos] = (byte)(d.length / 128);
+            bytes[pos + 1] = (byte)(d.length % 128);
+            pos += 2;
+
+            System.arraycopy(d, 0, bytes, pos, d.length);
+            pos += d.length;
+        }
+
+        return bytes;
+    }
+
+    public static ArrayList<Boolean> toBooleanArray(byte[] bytes) {
+        BitSet bits = BitSet.valueOf(bytes);
+        ArrayList<Boolean> bools = new ArrayList<>();
+        for (int i = 0; i < bytes.length * 8; i++) {
+            bools.add(false);
+        }
+        for (int i = bits.nextSetBit(0); i != -1; i = bits.nextSetBit(i+1)) {
+            bools.set(i, true);
+        }
+        return bools;
+    }
+
+    public static byte[] toByteArray(Boolean[] bools) {
+        BitSet bits = new BitSet(bools.length);
+        for (int i = 0; i < bools.length; i++) {
+            if (bools[i]) {
+                bits.set(i);
+            }
+        }
+
+        byte[] bytes = bits.toByteArray();
+        if (bytes.length * 8 >= bools.length) {
+            return bytes;
+        } else {
+            return Arrays.copyOf(bytes, bools.length / 8 + (bools.length % 8 == 0 ? 0 : 1));
+        }
+    }
+
+    /**
+     * Build a complete boolean payload, type tag included.
+     */
+    public static byte[] toBooleanMessage(ArrayList<Boolean> arr) {
+        Boolean[] boolsArr = new Boolean[arr.size()];
+        boolsArr = arr.toArray(boolsArr);
+
+        byte[] data = toByteArray(boolsArr);
+
+        byte[] send = new byte[data.length + 1];
+        send[0] = TYPE_BOOLEAN;
+        System.arraycopy(data, 0, send, 1, data.length);
+        return send;
+    }
+
+    /**
+     * Decode a complete boolean payload, type tag included.
+     */
+    public static ArrayList<Boolean> fromBooleanMessage(byte[] arr) {
+        return toBooleanArray(Arrays.copyOfRange(arr, 1, arr.length));
+    }
+
+    /**
+     * Build a session message, type tag included.
+     *
+     * @param flags  Combination of the SESSION_ flags
+     * @param id     Session id chosen by the prover
+     * @param rounds Number of rounds passed so far, always 0 in a verifier's
+     *               reply as no rounds are carried over a resume
+     */
+    public static byte[] toSessionMessage(int flags, long id, int rounds) {
+        return ByteBuffer.allocate(SESSION_LENGTH)
+                .put(TYPE_SESSION)
+                .put((byte) flags)
+                .putLong(id)
+                .putInt(rounds)
+                .array();
+    }
+
+    public static int sessionFlags(byte[] arr) {
+        return arr[1] & 0xFF;
+    }
+
+    public static long sessionId(byte[] arr) {
+        return ByteBuffer.wrap(arr, 2, 8).getLong();
+    }
+
+    public static int sessionRounds(byte[] arr) {
+        return ByteBuffer.wrap(arr, 10, 4).getInt();
+    }
+
+    /**
+     * Build the message offering a public key by its fingerprint, type tag included.
+     */
+    public static byte[] toKeyIdMessage(byte[] fingerprint) {
+        byte[] send = new byte[fingerprint.length + 1];
+        send[0] = TYPE_KEY_ID;
+        System.arraycopy(fingerprint, 0, send, 1, fingerprint.length);
+        return send;
+    }
+
+    /**
+     * Build the answer to a fingerprint, telling whether the full key is needed.
+     */
+    public static byte[] toKeyIdReply(boolean known) {
+        return new byte[]{TYPE_KEY_ID, (byte) (known ? 1 : 0)};
+    }
+
+    public static byte[] keyIdFingerprint(byte[] arr) {
+        return Arrays.copyOfRange(arr, 1, arr.length);
+    }
+
+    public static boolean isKnownKey(byte[] reply) {
+        return reply[1] != 0;
+    }
+
+    /**
+     * Build the message naming an identity-based public key, type tag included:
+     * the length of n in two bytes, n, and the identity in UTF-8.
+     */
+    public static byte[] toIdentityMessage(BigInteger n, String identity) {
+        byte[] modulus = n.toByteArray();
+        byte[] name = identity.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(3 + modulus.length + name.length)
+                .put(TYPE_IDENTITY)
+                .putShort((short) modulus.length)
+                .put(modulus)
+                .put(name)
+                .array();
+    }
+
+    public static BigInteger identityN(byte[] arr) {
+        int length = ByteBuffer.wrap(arr, 1, 2).getShort() & 0xFFFF;
+        return new BigInteger(Arrays.copyOfRange(arr, 3, 3 + length));
+    }
+
+    public static String identityName(byte[] arr) {
+        int length = ByteBuffer.wrap(arr, 1, 2).getShort() & 0xFFFF;
+        return new String(arr, 3 + length, arr.length - 3 - length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hash x into a commitment, which the prover can send instead of x itself.
+     */
+    public static byte[] commit(BigInteger x) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(x.toByteArray());
+            return Arrays.copyOf(hash, COMMITMENT_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Build a commitment message, type tag included.
+     */
+    public static byte[] toCommitmentMessage(byte[] commitment) {
+        byte[] send = new byte[commitment.length + 1];
+        send[0] = TYPE_COMMITMENT;
+        System.arraycopy(commitment, 0, send, 1, commitment.length);
+        return send;
+    }
+
+    /**
+     * Build a ticket message, type tag included. The prover sends one to present
+     * a ticket or, without a ticket, just to ask for one. The verifier sends one
+     * at the end to issue a ticket, or without a ticket to refuse.
+     *
+     * @param ticket The ticket, or null for none
+     */
+    public static byte[] toTicketMessage(byte[] ticket) {
+        if (ticket == null) {
+            return new byte[]{TYPE_TICKET};
+        }
+        byte[] send = new byte[ticket.length + 1];
+        send[0] = TYPE_TICKET;
+        System.arraycopy(ticket, 0, send, 1, ticket.length);
+        return send;
+    }
+
+    /**
+     * @return The ticket in a ticket message, or null if there is none
+     */
+    public static byte[] ticket(byte[] arr) {
+        return arr.length > 1 ? Arrays.copyOfRange(arr, 1, arr.length) : null;
+    }
+
+    /**
+     * Build the answer to a presented ticket.
+     *
+     * @param rounds Number of rounds the prover still has to pass if accepted
+     */
+    public static byte[] toTicketReply(boolean accepted, int rounds) {
+        return ByteBuffer.allocate(TICKET_REPLY_LENGTH)
+                .put(TYPE_TICKET)
+                .put((byte) (accepted ? 1 : 0))
+                .putInt(rounds)
+                .array();
+    }
+
+    public static boolean isAcceptedTicket(byte[] reply) {
+        return reply[1] != 0;
+    }
+
+    public static int ticketRounds(byte[] reply) {
+        return ByteBuffer.wrap(reply, 2, 4).getInt();
+    }
+}
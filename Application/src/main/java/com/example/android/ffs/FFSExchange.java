@@ -0,0 +1,847 @@
+package com.example.android.ffs;
+
+import com.example.android.transport.Connection;
+import com.example.android.transport.EmulatedLinkTransport;
+import com.example.android.transport.FramedConnection;
+import com.example.android.transport.InMemoryTransport;
+import com.example.android.transport.LinkProfile;
+import com.example.android.transport.ServerEndpoint;
+import com.example.android.transport.TcpTransport;
+import com.example.android.transport.Transport;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a complete identification between {@link FFSPeggy} and {@link FFSVictor}
+ * without any user interaction, using the same messages as the app. Together with
+ * a {@link Transport} this lets the protocol run off-device at full speed.
+ */
+public class FFSExchange {
+
+    // Smaller keys are cheaper to send than the round trip a fingerprint costs
+    private static final int FINGERPRINT_MIN_KEY_BYTES = 1024;
+
+    private static final FFSVerifierServer.Listener SILENT_VERIFIER =
+            new FFSVerifierServer.Listener() {
+                @Override
+                public void onSessionStarted(int sessionId, String remoteName) {
+                }
+
+                @Override
+                public void onSessionFinished(int sessionId, String remoteName,
+                                              boolean verified, long elapsedNanos) {
+                }
+
+                @Override
+                public void onSessionFailed(int sessionId, String remoteName, IOException e) {
+                }
+
+                @Override
+                public void onSessionRejected(String remoteName) {
+                }
+            };
+
+    private FFSExchange() {
+    }
+
+    /**
+     * Run the prover side: send V, then answer the given number of challenges.
+     *
+     * @return Whether the verifier accepted every round
+     */
+    public static boolean prove(FramedConnection connection, FFSPeggy peggy, int rounds)
+            throws IOException {
+        return prove(connection, peggy, rounds, null, null, false);
+    }
+
+    /**
+     * Run the prover side of a resumable session. The first time V is sent as
+     * usual. After a dropped connection, calling this again with the same
+     * session asks the verifier to continue it, and V is skipped if the
+     * verifier still knows the session. The rounds run again in full.
+     * <p>
+     * With a session the prover also presents the ticket it holds, or asks for
+     * one. If the verifier accepts the ticket only the few rounds it asks for
+     * are run, otherwise the identification runs in full and the verifier may
+     * issue a new ticket, which is left in the session.
+     *
+     * @param session The session to open or resume, null to not use one
+     * @param key     The key of Peggy. If given, an identity-based key is sent as
+     *                its identity, and a large V only when the verifier does not
+     *                know its fingerprint yet. Null to always send V.
+     * @param commit  Whether to send a short hash of every x instead of x
+     * @return Whether the verifier accepted every round
+     */
+    public static boolean prove(FramedConnection connection, FFSPeggy peggy, int rounds,
+                                FFSSession session, FFSKey key, boolean commit)
+            throws IOException {
+        if (session != null) {
+            byte[] ticket = session.getTicket();
+            if (ticket != null && FFSTicketStore.expiresAt(ticket) <= System.currentTimeMillis()) {
+                ticket = null;
+            }
+            send(connection, FFSCodec.toTicketMessage(ticket));
+            if (ticket != null) {
+                byte[] reply = expect(connection, FFSCodec.TYPE_TICKET);
+                if (reply.length != FFSCodec.TICKET_REPLY_LENGTH) {
+                    throw new IOException("Invalid ticket reply length " + reply.length);
+                }
+                if (FFSCodec.isAcceptedTicket(reply)) {
+                    boolean verified = answer(connection, peggy,
+                            FFSCodec.ticketRounds(reply), commit, null);
+                    expectTicket(connection);
+                    return verified;
+                }
+            }
+            session.setTicket(null);
+        }
+
+        boolean resumed = false;
+        if (session != null) {
+            if (session.isOpen()) {
+                send(connection, FFSCodec.toSessionMessage(FFSCodec.SESSION_RESUME,
+                        session.getId(), 0));
+                byte[] reply = expectSession(connection);
+                resumed = (FFSCodec.sessionFlags(reply) & FFSCodec.SESSION_KNOWN) != 0;
+                if (resumed) {
+                    session.resume();
+                }
+            } else {
+                send(connection, FFSCodec.toSessionMessage(0, session.getId(), 0));
+            }
+            if (!resumed) {
+                session.restart();
+            }
+        }
+        if (!resumed) {
+            sendPublicKey(connection, peggy, key);
+        }
+
+        boolean verified = answer(connection, peggy, rounds, commit, session);
+        if (session != null) {
+            verified &= session.isVerified();
+            session.setTicket(expectTicket(connection));
+        }
+        return verified;
+    }
+
+    /**
+     * Answer the given number of challenges.
+     *
+     * @param session Session to record the rounds in, or null
+     * @return Whether the verifier accepted all of them
+     */
+    private static boolean answer(FramedConnection connection, FFSPeggy peggy, int rounds,
+                                  boolean commit, FFSSession session)
+            throws IOException {
+        FFSMetrics metrics = FFSMetrics.get();
+        boolean verified = true;
+        for (int round = 0; round < rounds; round++) {
+            long t = System.nanoTime();
+            BigInteger x;
+            FFSTrace.begin("getX");
+            try {
+                x = peggy.getX();
+            } finally {
+                FFSTrace.end();
+            }
+            t = metrics.lap(FFSMetrics.Phase.GET_X, t);
+            byte[] message = commit
+                    ? FFSCodec.toCommitmentMessage(FFSCodec.commit(x))
+                    : FFSCodec.toByteArray(new ArrayList<>(Collections.singletonList(x)));
+            metrics.lap(FFSMetrics.Phase.ENCODE, t);
+            send(connection, message);
+
+            message = expect(connection, FFSCodec.TYPE_BOOLEAN);
+            t = System.nanoTime();
+            ArrayList<Boolean> a = decodeBooleans(message, peggy.getK());
+            t = metrics.lap(FFSMetrics.Phase.DECODE, t);
+            BigInteger y;
+            FFSTrace.begin("getY");
+            try {
+                y = peggy.getY(a);
+            } finally {
+                FFSTrace.end();
+            }
+            t = metrics.lap(FFSMetrics.Phase.GET_Y, t);
+            message = FFSCodec.toByteArray(new ArrayList<>(Collections.singletonList(y)));
+            metrics.lap(FFSMetrics.Phase.ENCODE, t);
+            send(connection, message);
+
+            message = expect(connection, FFSCodec.TYPE_BOOLEAN);
+            t = System.nanoTime();
+            ArrayList<Boolean> c = decodeBooleans(message, 1);
+            metrics.lap(FFSMetrics.Phase.DECODE, t);
+            verified &= c.get(0);
+            if (session != null) {
+                session.roundDone(c.get(0));
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Run the verifier side: receive V, then challenge the prover the given number
+     * of times.
+     *
+     * @return Whether the prover passed every round
+     */
+    public static boolean verify(FramedConnection connection, FFSVictor victor, int rounds)
+            throws IOException {
+        return verify(connection, victor, rounds, null, null, null, null);
+    }
+
+    /**
+     * Run the verifier side, letting provers that use a {@link FFSSession} resume.
+     * The public vector is kept in the cache until all rounds are done, so a
+     * prover that lost its connection does not send it again. The rounds do
+     * run again in full, the session id is no secret.
+     * <p>
+     * A prover that presents a valid ticket only has to pass the rounds the
+     * ticket store asks for, and the ticket is revoked if it does not. A
+     * prover that asked for a ticket and passed all rounds gets a new one.
+     *
+     * @param cache   Unfinished sessions, null to make every prover start over
+     * @param keys    Public keys seen before, null to always ask for the full key
+     * @param tickets Tickets issued before, null to neither issue nor accept any
+     * @param trustedN The modulus of the trusted key center, the only one an
+     *                 identity-based key may use. Null to accept no identities.
+     * @return Whether the prover passed every round
+     */
+    public static boolean verify(FramedConnection connection, FFSVictor victor, int rounds,
+                                 FFSSessionCache cache, FFSKeyCache keys,
+                                 FFSTicketStore tickets, BigInteger trustedN) throws IOException {
+        byte[] message = receive(connection);
+        boolean ticketRequested = false;
+        if (message.length > 0 && message[0] == FFSCodec.TYPE_TICKET) {
+            ticketRequested = true;
+            byte[] ticket = FFSCodec.ticket(message);
+            if (ticket != null) {
+                ArrayList<BigInteger> nv = tickets == null ? null : tickets.redeem(ticket);
+                int ticketRounds = tickets == null ? 0 : Math.min(tickets.getTicketRounds(), rounds);
+                send(connection, FFSCodec.toTicketReply(nv != null, ticketRounds));
+                if (nv != null) {
+                    checkPublicKey(nv, victor.getK());
+                    // A copy, the store keeps the list for the next redeem
+                    victor.receiveV(new ArrayList<>(nv));
+                    boolean verified = false;
+                    try {
+                        verified = challenge(connection, victor, nv.get(0), ticketRounds, null);
+                    } finally {
+                        // Also when the rounds broke off, a holder that could not finish
+                        // them has to identify in full again
+                        if (!verified) {
+                            tickets.revoke(ticket);
+                        }
+                    }
+                    // No new ticket, the one presented stays valid until it expires
+                    send(connection, FFSCodec.toTicketMessage(null));
+                    return verified;
+                }
+            }
+            message = receive(connection);
+        }
+
+        FFSSessionCache.Session session = null;
+        boolean sessionOpened = false;
+        long id = 0;
+        if (message.length > 0 && message[0] == FFSCodec.TYPE_SESSION) {
+            checkSession(message);
+            id = FFSCodec.sessionId(message);
+            if ((FFSCodec.sessionFlags(message) & FFSCodec.SESSION_RESUME) != 0) {
+                session = cache == null ? null : cache.resume(id);
+                // Only V is kept, rounds passed before the drop are not credited.
+                // The id went over the link in clear, and whoever learned it
+                // must not inherit them.
+                send(connection, FFSCodec.toSessionMessage(
+                        session == null ? 0 : FFSCodec.SESSION_KNOWN, id, 0));
+            }
+            if (session == null) {
+                // A new session or one we forgot, V comes next either way
+                sessionOpened = true;
+                message = receive(connection);
+            }
+        }
+
+        ArrayList<BigInteger> nv;
+        if (session == null) {
+            nv = receivePublicKey(connection, message, keys, trustedN, victor.getK());
+            if (sessionOpened && cache != null) {
+                session = cache.open(id, nv);
+                if (session == null) {
+                    throw new IOException("Session " + id + " already open");
+                }
+            }
+        } else {
+            nv = session.getNV();
+        }
+        // Cached keys too, a cache may be shared with verifiers of another k
+        checkPublicKey(nv, victor.getK());
+        // A copy, receiveV modifies the list and a ticket needs it unchanged
+        victor.receiveV(new ArrayList<>(nv));
+
+        boolean verified = challenge(connection, victor, nv.get(0), rounds, session);
+        if (session != null) {
+            verified &= session.isVerified();
+            cache.finish(id);
+        }
+        if (ticketRequested) {
+            send(connection, FFSCodec.toTicketMessage(
+                    verified && tickets != null ? tickets.issue(nv) : null));
+        }
+        return verified;
+    }
+
+    /**
+     * Challenge the prover the given number of times.
+     *
+     * @param n       The modulus of the prover's public key
+     * @param session Session to record the rounds in, or null
+     * @return Whether the prover passed all of them
+     */
+    private static boolean challenge(FramedConnection connection, FFSVictor victor, BigInteger n,
+                                     int rounds, FFSSessionCache.Session session)
+            throws IOException {
+        FFSMetrics metrics = FFSMetrics.get();
+        boolean verified = true;
+        for (int round = 0; round < rounds; round++) {
+            ArrayList<Boolean> a = challenge(connection, victor, n);
+            long t = System.nanoTime();
+            byte[] message = FFSCodec.toBooleanMessage(a);
+            metrics.lap(FFSMetrics.Phase.ENCODE, t);
+            send(connection, message);
+
+            message = expect(connection, FFSCodec.TYPE_BIG_INTEGER);
+            t = System.nanoTime();
+            BigInteger y = decodeNumbers(message, 1).get(0);
+            checkUnit(y, n);
+            t = metrics.lap(FFSMetrics.Phase.DECODE, t);
+            boolean c;
+            FFSTrace.begin("check");
+            try {
+                c = victor.check(y);
+            } finally {
+                FFSTrace.end();
+            }
+            t = metrics.lap(FFSMetrics.Phase.CHECK, t);
+            message = FFSCodec.toBooleanMessage(new ArrayList<>(Collections.singletonList(c)));
+            metrics.lap(FFSMetrics.Phase.ENCODE, t);
+            send(connection, message);
+
+            metrics.increment(FFSMetrics.Counter.ROUNDS);
+            if (!c) {
+                metrics.increment(FFSMetrics.Counter.FAILED_ROUNDS);
+            }
+            verified &= c;
+            if (session != null) {
+                session.roundDone(c);
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Send V, or what the verifier needs to get V without it.
+     */
+    private static void sendPublicKey(FramedConnection connection, FFSPeggy peggy, FFSKey key)
+            throws IOException {
+        if (key == null) {
+            FFSMetrics metrics = FFSMetrics.get();
+            long t = System.nanoTime();
+            ArrayList<BigInteger> v;
+            FFSTrace.begin("getV");
+            try {
+                v = peggy.getV();
+            } finally {
+                FFSTrace.end();
+            }
+            t = metrics.lap(FFSMetrics.Phase.GET_V, t);
+            byte[] message = FFSCodec.toByteArray(v);
+            metrics.lap(FFSMetrics.Phase.ENCODE, t);
+            send(connection, message);
+            return;
+        }
+        if (key.getIdentity() != null) {
+            send(connection, FFSCodec.toIdentityMessage(key.getN(), key.getIdentity()));
+            return;
+        }
+
+        byte[] encoded = key.getEncodedPublicV();
+        if (encoded.length >= FINGERPRINT_MIN_KEY_BYTES) {
+            send(connection, FFSCodec.toKeyIdMessage(key.getFingerprint()));
+            byte[] reply = expect(connection, FFSCodec.TYPE_KEY_ID);
+            if (reply.length != 2) {
+                throw new IOException("Invalid key reply length " + reply.length);
+            }
+            if (FFSCodec.isKnownKey(reply)) {
+                return;
+            }
+        }
+        send(connection, encoded);
+    }
+
+    /**
+     * Receive V, answering a fingerprint from the cache when possible, or derive
+     * it from an identity.
+     *
+     * @param message  The first message of the prover after any session message
+     * @param trustedN The only modulus identities are accepted under, or null
+     * @param k        Number of v_i the verifier checks
+     * @return The public key [n, v_1, ..., v_k]
+     */
+    private static ArrayList<BigInteger> receivePublicKey(FramedConnection connection,
+                                                          byte[] message, FFSKeyCache keys,
+                                                          BigInteger trustedN, int k)
+            throws IOException {
+        if (message.length > 0 && message[0] == FFSCodec.TYPE_IDENTITY) {
+            BigInteger n;
+            String identity;
+            try {
+                n = FFSCodec.identityN(message);
+                identity = FFSCodec.identityName(message);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid identity message", e);
+            }
+            // Anybody knowing the factors of n can compute the secrets of any
+            // identity, so only the n of the key center is worth anything
+            if (trustedN == null || !trustedN.equals(n)) {
+                throw new IOException("Identity under an untrusted modulus");
+            }
+            return keys == null
+                    ? FFSIdentity.derivePublicV(n, identity, k)
+                    : keys.derive(n, identity, k);
+        }
+
+        byte[] fingerprint = null;
+        if (message.length > 0 && message[0] == FFSCodec.TYPE_KEY_ID) {
+            if (message.length != FFSCodec.FINGERPRINT_LENGTH + 1) {
+                throw new IOException("Invalid fingerprint length " + message.length);
+            }
+            fingerprint = FFSCodec.keyIdFingerprint(message);
+            ArrayList<BigInteger> nv = keys == null ? null : keys.get(fingerprint);
+            send(connection, FFSCodec.toKeyIdReply(nv != null));
+            if (nv != null) {
+                return nv;
+            }
+            message = receive(connection);
+        }
+
+        check(message, FFSCodec.TYPE_BIG_INTEGER);
+        long t = System.nanoTime();
+        // n and all k of the v_i, check() reads every one of them
+        ArrayList<BigInteger> nv = decodeNumbers(message, k + 1);
+        FFSMetrics.get().lap(FFSMetrics.Phase.DECODE, t);
+        if (fingerprint != null && keys != null) {
+            keys.put(fingerprint, nv);
+        }
+        return nv;
+    }
+
+    /**
+     * Receive x or a commitment to it, and challenge it.
+     */
+    private static ArrayList<Boolean> challenge(FramedConnection connection, FFSVictor victor,
+                                                BigInteger n) throws IOException {
+        FFSMetrics metrics = FFSMetrics.get();
+        byte[] message = receive(connection);
+        long t = System.nanoTime();
+        ArrayList<Boolean> a;
+        if (message.length > 0 && message[0] == FFSCodec.TYPE_COMMITMENT) {
+            if (message.length != FFSCodec.COMMITMENT_LENGTH + 1) {
+                throw new IOException("Invalid commitment length " + message.length);
+            }
+            byte[] commitment = Arrays.copyOfRange(message, 1, message.length);
+            t = metrics.lap(FFSMetrics.Phase.DECODE, t);
+            FFSTrace.begin("getA");
+            try {
+                a = victor.getA(commitment);
+            } finally {
+                FFSTrace.end();
+            }
+        } else {
+            check(message, FFSCodec.TYPE_BIG_INTEGER);
+            BigInteger x = decodeNumbers(message, 1).get(0);
+            checkUnit(x, n);
+            t = metrics.lap(FFSMetrics.Phase.DECODE, t);
+            FFSTrace.begin("getA");
+            try {
+                a = victor.getA(x);
+            } finally {
+                FFSTrace.end();
+            }
+        }
+        metrics.lap(FFSMetrics.Phase.GET_A, t);
+        return a;
+    }
+
+    /**
+     * Receive the ticket message that ends an identification.
+     *
+     * @return The ticket issued, or null if there is none
+     */
+    private static byte[] expectTicket(FramedConnection connection) throws IOException {
+        byte[] ticket = FFSCodec.ticket(expect(connection, FFSCodec.TYPE_TICKET));
+        if (ticket != null && ticket.length != FFSTicketStore.TICKET_LENGTH) {
+            throw new IOException("Invalid ticket length " + ticket.length);
+        }
+        return ticket;
+    }
+
+    /**
+     * Make sure a public key [n, v_1, ..., v_k] has a usable modulus and all the
+     * v_i the verifier checks.
+     */
+    private static void checkPublicKey(List<BigInteger> nv, int k) throws IOException {
+        if (nv.size() <= k) {
+            throw new IOException("Public key has " + (nv.size() - 1) + " values, need " + k);
+        }
+        if (nv.get(0).signum() <= 0) {
+            throw new IOException("Invalid modulus");
+        }
+    }
+
+    /**
+     * Make sure x or y of the prover is a unit mod n. With x = y = 0 the check
+     * passes without any secret, and an honest prover never sends a value
+     * sharing a factor with n.
+     */
+    private static void checkUnit(BigInteger value, BigInteger n) throws IOException {
+        if (value.signum() <= 0 || value.compareTo(n) >= 0
+                || !value.gcd(n).equals(BigInteger.ONE)) {
+            throw new IOException("Value is not a unit mod n");
+        }
+    }
+
+    /**
+     * Decode a number message of the peer, which may be malformed.
+     *
+     * @param count Numbers the message has to hold at least
+     */
+    private static ArrayList<BigInteger> decodeNumbers(byte[] message, int count)
+            throws IOException {
+        ArrayList<BigInteger> numbers;
+        try {
+            numbers = FFSCodec.toBigIntegerArray(message);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid number message", e);
+        }
+        if (numbers.size() < count) {
+            throw new IOException("Expected " + count + " numbers, got " + numbers.size());
+        }
+        return numbers;
+    }
+
+    /**
+     * Decode a boolean message of the peer, see {@link #decodeNumbers(byte[], int)}.
+     */
+    private static ArrayList<Boolean> decodeBooleans(byte[] message, int count)
+            throws IOException {
+        ArrayList<Boolean> booleans = FFSCodec.fromBooleanMessage(message);
+        if (booleans.size() < count) {
+            throw new IOException("Expected " + count + " booleans, got " + booleans.size());
+        }
+        return booleans;
+    }
+
+    private static byte[] expectSession(FramedConnection connection) throws IOException {
+        byte[] payload = expect(connection, FFSCodec.TYPE_SESSION);
+        checkSession(payload);
+        return payload;
+    }
+
+    private static void checkSession(byte[] payload) throws IOException {
+        if (payload.length != FFSCodec.SESSION_LENGTH) {
+            throw new IOException("Invalid session message length " + payload.length);
+        }
+    }
+
+    private static void send(FramedConnection connection, byte[] payload) throws IOException {
+        FFSTrace.begin("send");
+        try {
+            connection.send(payload);
+        } finally {
+            FFSTrace.end();
+        }
+        FFSMetrics.get().add(FFSMetrics.Counter.BYTES_SENT, payload.length);
+    }
+
+    /**
+     * Receive the next message, the wait for it counted as wire time.
+     */
+    private static byte[] receive(FramedConnection connection) throws IOException {
+        FFSMetrics metrics = FFSMetrics.get();
+        long t = System.nanoTime();
+        byte[] payload;
+        FFSTrace.begin("receive");
+        try {
+            payload = connection.receive();
+        } finally {
+            FFSTrace.end();
+        }
+        metrics.lap(FFSMetrics.Phase.WIRE, t);
+        metrics.add(FFSMetrics.Counter.BYTES_RECEIVED, payload.length);
+        return payload;
+    }
+
+    private static byte[] expect(FramedConnection connection, byte type) throws IOException {
+        byte[] payload = receive(connection);
+        check(payload, type);
+        return payload;
+    }
+
+    private static void check(byte[] payload, byte type) throws IOException {
+        if (payload.length == 0 || payload[0] != type) {
+            throw new IOException("Unexpected message, wanted type " + type);
+        }
+    }
+
+    /**
+     * Run a whole identification over the given transport, with both ends in this
+     * process.
+     *
+     * @param l      Bit length of each prime factor of n
+     * @param k      Number of secrets
+     * @param rounds Number of challenge rounds
+     * @return Time the exchange took in nanoseconds, key generation excluded
+     */
+    public static long run(Transport transport, int l, int k, int rounds) throws IOException {
+        return run(transport, l, k, rounds, false);
+    }
+
+    /**
+     * Run a whole identification, see {@link #run(Transport, int, int, int)}.
+     *
+     * @param commit Whether the prover sends hashed commitments instead of x
+     */
+    public static long run(Transport transport, int l, int k, final int rounds,
+                           final boolean commit) throws IOException {
+        SecureRandom random = new SecureRandom();
+        long t = System.nanoTime();
+        FFSKey key;
+        FFSTrace.begin("keygen");
+        try {
+            key = FFSKey.generate(l, k, random);
+        } finally {
+            FFSTrace.end();
+        }
+        FFSMetrics.get().lap(FFSMetrics.Phase.KEYGEN, t);
+        final FFSPeggy peggy = new FFSPeggy(key.getN(), key.getS(), l, k, SecureRandom.getSeed(l));
+        final FFSVictor victor = new FFSVictor(key.getN(), k, SecureRandom.getSeed(l));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final ServerEndpoint endpoint = transport.listen("FFSExchange");
+        try {
+            Future<Boolean> verifier = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    try (FramedConnection connection = new FramedConnection(endpoint.accept())) {
+                        return verify(connection, victor, rounds);
+                    }
+                }
+            });
+
+            long start = System.nanoTime();
+            Connection client = transport.open(endpoint.getAddress());
+            client.connect();
+            boolean proved;
+            try (FramedConnection connection = new FramedConnection(client)) {
+                proved = prove(connection, peggy, rounds, null, null, commit);
+            }
+            boolean verified = verifier.get();
+            long elapsed = System.nanoTime() - start;
+
+            if (!proved || !verified) {
+                throw new IOException("Identification failed");
+            }
+            return elapsed;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Verifier failed", e);
+        } finally {
+            endpoint.close();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run many identifications against one {@link FFSVerifierServer}, with all
+     * provers and the server in this process.
+     *
+     * @param provers     Number of provers connecting at the same time
+     * @param maxSessions Session cap of the server, at least {@code provers}
+     * @return Completed sessions per second
+     */
+    public static double runConcurrent(final Transport transport, final int l, final int k,
+                                       final int rounds, int provers, int maxSessions)
+            throws IOException {
+        final FFSKey key = FFSKey.generate(l, k, new SecureRandom());
+        FFSVerifierServer server = new FFSVerifierServer(k, rounds, maxSessions, SILENT_VERIFIER);
+        final ServerEndpoint endpoint = transport.listen("FFSVerifierServer");
+        server.serve(endpoint);
+
+        ExecutorService executor = Executors.newFixedThreadPool(provers);
+        List<Callable<Boolean>> tasks = new ArrayList<>(provers);
+        for (int i = 0; i < provers; i++) {
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    FFSPeggy peggy = new FFSPeggy(key.getN(), key.getS(), l, k,
+                            SecureRandom.getSeed(l));
+                    Connection client = transport.open(endpoint.getAddress());
+                    client.connect();
+                    try (FramedConnection connection = new FramedConnection(client)) {
+                        return prove(connection, peggy, rounds);
+                    }
+                }
+            });
+        }
+
+        try {
+            long start = System.nanoTime();
+            for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                if (!result.get()) {
+                    throw new IOException("Identification failed");
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            return provers / (elapsed / 1e9);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Prover failed", e);
+        } finally {
+            server.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Prove one key to several verifiers at the same time, each reached over its
+     * own transport, with everything in this process.
+     *
+     * @param links One transport per verifier
+     * @return Time until every verifier accepted, in nanoseconds
+     */
+    public static long runMultiTarget(Transport[] links, int l, int k, int rounds)
+            throws IOException {
+        FFSKey key = FFSKey.generate(l, k, new SecureRandom());
+        FFSProverClient client = new FFSProverClient(key, l, rounds, links.length,
+                new FFSProverClient.Listener() {
+                    @Override
+                    public void onSessionStarted(int sessionId, String remoteName) {
+                    }
+
+                    @Override
+                    public void onSessionFinished(int sessionId, String remoteName,
+                                                  boolean verified, long elapsedNanos) {
+                    }
+
+                    @Override
+                    public void onSessionFailed(int sessionId, String remoteName, IOException e) {
+                    }
+                });
+
+        ArrayList<FFSVerifierServer> servers = new ArrayList<>(links.length);
+        ArrayList<String> addresses = new ArrayList<>(links.length);
+        for (Transport link : links) {
+            FFSVerifierServer server = new FFSVerifierServer(k, rounds, 1, SILENT_VERIFIER);
+            ServerEndpoint endpoint = link.listen("FFSVerifierServer");
+            server.serve(endpoint);
+            servers.add(server);
+            addresses.add(endpoint.getAddress());
+        }
+
+        try {
+            long start = System.nanoTime();
+            ArrayList<Future<Boolean>> results = new ArrayList<>(links.length);
+            for (int i = 0; i < links.length; i++) {
+                results.add(client.prove(links[i], addresses.get(i)));
+            }
+            for (Future<Boolean> result : results) {
+                if (!result.get()) {
+                    throw new IOException("Identification failed");
+                }
+            }
+            return System.nanoTime() - start;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Prover failed", e);
+        } finally {
+            client.stop();
+            for (FFSVerifierServer server : servers) {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Usage: {@code FFSExchange [l] [k] [rounds] [trace.json]}
+     * <p>
+     * Runs the identification over the raw in-memory and TCP transports, then
+     * over every {@link LinkProfile} preset with x sent in full and as a hashed
+     * commitment, and finally measures how many
+     * sessions per second one {@link FFSVerifierServer} can verify and how long
+     * one prover takes to identify itself to a verifier behind every preset at
+     * once. Ends with where the time of all these runs went, see {@link FFSMetrics}.
+     * Given a file name, the runs are also traced into it, see {@link FFSTrace}.
+     */
+    public static void main(String[] args) throws IOException {
+        int l = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        String trace = args.length > 3 ? args[3] : null;
+        FFSTrace.setEnabled(trace != null);
+
+        Transport[] transports = {new InMemoryTransport(), new TcpTransport()};
+        for (Transport transport : transports) {
+            long elapsed = run(transport, l, k, rounds);
+            System.out.printf("%s: l=%d k=%d rounds=%d %.3f ms%n",
+                    transport.getClass().getSimpleName(), l, k, rounds, elapsed / 1e6);
+        }
+
+        for (LinkProfile profile : LinkProfile.PRESETS) {
+            long elapsed = run(new EmulatedLinkTransport(new InMemoryTransport(), profile, 0),
+                    l, k, rounds);
+            long committed = run(new EmulatedLinkTransport(new InMemoryTransport(), profile, 0),
+                    l, k, rounds, true);
+            System.out.printf("%s: l=%d k=%d rounds=%d %.3f ms, hashed commitments %.3f ms%n",
+                    profile, l, k, rounds, elapsed / 1e6, committed / 1e6);
+        }
+
+        int provers = 4 * Runtime.getRuntime().availableProcessors();
+        double throughput = runConcurrent(new InMemoryTransport(), l, k, rounds, provers, provers);
+        System.out.printf("FFSVerifierServer: %d provers, l=%d k=%d rounds=%d %.1f sessions/s%n",
+                provers, l, k, rounds, throughput);
+
+        Transport[] links = new Transport[LinkProfile.PRESETS.length];
+        for (int i = 0; i < links.length; i++) {
+            links[i] = new EmulatedLinkTransport(new InMemoryTransport(), LinkProfile.PRESETS[i], i);
+        }
+        long elapsed = runMultiTarget(links, l, k, rounds);
+        System.out.printf("FFSProverClient: %d verifiers, l=%d k=%d rounds=%d %.3f ms%n",
+                links.length, l, k, rounds, elapsed / 1e6);
+
+        System.out.print(FFSMetrics.get().toSummary());
+
+        if (trace != null) {
+            FFSTrace.setEnabled(false);
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(trace),
+                    StandardCharsets.UTF_8)) {
+                FFSTrace.writeChromeJson(out);
+            }
+            System.out.printf("Trace written to %s, %d spans dropped%n", trace,
+                    FFSTrace.getDropped());
+        }
+    }
+}
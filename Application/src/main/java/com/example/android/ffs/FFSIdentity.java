@@ -0,0 +1,151 @@
+package com.example.android.ffs;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+
+/**
+ * Identity-based keys in the original Fiat-Feige-Shamir style. Instead of being
+ * computed from random secrets, every v_i is derived from the identity string:
+ * it is the first hash of (identity, i, counter) that is a unit mod n with
+ * Jacobi symbol 1. Anybody can derive V from n and the identity, so V never
+ * has to cross the link.
+ * <p>
+ * The secrets need the factors of n. For a Blum integer n = p * q, with
+ * p = q = 3 mod 4, exactly one of v_i^-1 and -v_i^-1 is a square mod n, and its
+ * square root s_i is found mod p and mod q and combined with the CRT. Then
+ * s_i^-2 = +-v_i, and {@link FFSVictor#check} accepts either sign.
+ */
+public class FFSIdentity {
+
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+    private static final BigInteger THREE = BigInteger.valueOf(3);
+    private static final BigInteger FOUR = BigInteger.valueOf(4);
+
+    private FFSIdentity() {
+    }
+
+    /**
+     * Derive the public key of an identity.
+     *
+     * @return [n, v_1, ..., v_k]
+     */
+    public static ArrayList<BigInteger> derivePublicV(BigInteger n, String identity, int k) {
+        ArrayList<BigInteger> nv = new ArrayList<>(k + 1);
+        nv.add(n);
+        for (int i = 1; i <= k; i++) {
+            nv.add(deriveV(n, identity, i));
+        }
+        return nv;
+    }
+
+    /**
+     * Derive v_i of an identity, 1 <= i <= k.
+     */
+    public static BigInteger deriveV(BigInteger n, String identity, int i) {
+        byte[] name = identity.getBytes(StandardCharsets.UTF_8);
+        // 64 bits more than n, so reducing mod n is close to uniform
+        int length = (n.bitLength() + 7) / 8 + 8;
+        for (int counter = 0; ; counter++) {
+            BigInteger v = new BigInteger(1, expand(name, i, counter, length)).mod(n);
+            if (v.signum() != 0 && v.gcd(n).equals(BigInteger.ONE) && jacobi(v, n) == 1) {
+                return v;
+            }
+        }
+    }
+
+    /**
+     * Generate a key for an identity. Whoever generates it knows the factors
+     * of n, in the original scheme that is a trusted key center, not the prover.
+     *
+     * @param l Bit length of each prime factor of n
+     * @param k Number of secrets
+     */
+    public static FFSKey generate(String identity, int l, int k, SecureRandom random) {
+        BigInteger p = blumPrime(l, random);
+        BigInteger q;
+        do {
+            q = blumPrime(l, random);
+        } while (q.equals(p));
+        BigInteger n = p.multiply(q);
+
+        BigInteger pExponent = p.add(BigInteger.ONE).divide(FOUR);
+        BigInteger qExponent = q.add(BigInteger.ONE).divide(FOUR);
+        BigInteger pInverse = p.modInverse(q);
+
+        ArrayList<BigInteger> s = new ArrayList<>(k);
+        for (int i = 1; i <= k; i++) {
+            BigInteger w = deriveV(n, identity, i).modInverse(n);
+            if (!isSquare(w, p)) {
+                w = n.subtract(w);
+            }
+            // Square roots mod p and mod q, joined with the CRT
+            BigInteger sp = w.mod(p).modPow(pExponent, p);
+            BigInteger sq = w.mod(q).modPow(qExponent, q);
+            s.add(sp.add(p.multiply(sq.subtract(sp).multiply(pInverse).mod(q))));
+        }
+
+        return new FFSKey(n, s, identity);
+    }
+
+    /**
+     * Jacobi symbol (a/n) for odd positive n.
+     *
+     * @return -1, 0 or 1
+     */
+    static int jacobi(BigInteger a, BigInteger n) {
+        a = a.mod(n);
+        int result = 1;
+        while (a.signum() != 0) {
+            int twos = a.getLowestSetBit();
+            a = a.shiftRight(twos);
+            int nMod8 = n.intValue() & 7;
+            if ((twos & 1) != 0 && (nMod8 == 3 || nMod8 == 5)) {
+                result = -result;
+            }
+            // Quadratic reciprocity
+            BigInteger t = a;
+            a = n;
+            n = t;
+            if ((a.intValue() & 3) == 3 && (n.intValue() & 3) == 3) {
+                result = -result;
+            }
+            a = a.mod(n);
+        }
+        return n.equals(BigInteger.ONE) ? result : 0;
+    }
+
+    private static boolean isSquare(BigInteger w, BigInteger p) {
+        // Euler's criterion
+        return w.modPow(p.subtract(BigInteger.ONE).divide(TWO), p).equals(BigInteger.ONE);
+    }
+
+    private static BigInteger blumPrime(int l, SecureRandom random) {
+        BigInteger p;
+        do {
+            p = BigInteger.probablePrime(l, random);
+        } while (!p.mod(FOUR).equals(THREE));
+        return p;
+    }
+
+    private static byte[] expand(byte[] name, int i, int counter, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer out = ByteBuffer.allocate(length);
+            for (int block = 0; out.hasRemaining(); block++) {
+                digest.update(name);
+                digest.update(ByteBuffer.allocate(12).putInt(i).putInt(counter).putInt(block).array());
+                byte[] hash = digest.digest();
+                out.put(hash, 0, Math.min(hash.length, out.remaining()));
+            }
+            return out.array();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
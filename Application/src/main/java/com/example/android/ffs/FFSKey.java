@@ -0,0 +1,117 @@
+package com.example.android.ffs;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Prover key material: the modulus n = p * q and the secrets s_1 ... s_k, and
+ * for identity-based keys the identity V is derived from, see {@link FFSIdentity}.
+ */
+public class FFSKey {
+
+    private final BigInteger n;
+    private final ArrayList<BigInteger> s;
+    private final String identity;
+    private volatile List<BigInteger> publicV;
+    private volatile byte[] encodedV;
+    private volatile byte[] fingerprint;
+
+    public FFSKey(BigInteger n, ArrayList<BigInteger> s) {
+        this(n, s, null);
+    }
+
+    public FFSKey(BigInteger n, ArrayList<BigInteger> s, String identity) {
+        this.n = n;
+        this.s = s;
+        this.identity = identity;
+    }
+
+    public BigInteger getN() {
+        return n;
+    }
+
+    public ArrayList<BigInteger> getS() {
+        return s;
+    }
+
+    /**
+     * Return the identity of an identity-based key, null for a random one.
+     */
+    public String getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Return the public key [n, v_1, ..., v_k] with v_i = s_i^(-2) mod n, or as
+     * derived from the identity. It is computed once and can be shared
+     * read-only by any number of provers.
+     */
+    public List<BigInteger> getPublicV() {
+        List<BigInteger> result = publicV;
+        if (result == null && identity != null) {
+            result = Collections.unmodifiableList(
+                    FFSIdentity.derivePublicV(n, identity, s.size()));
+            publicV = result;
+        } else if (result == null) {
+            BigInteger negativeTwo = BigInteger.valueOf(-2);
+            ArrayList<BigInteger> v = new ArrayList<>(s.size() + 1);
+            v.add(n);
+            for (BigInteger si : s) {
+                v.add(si.modPow(negativeTwo, n));
+            }
+            result = Collections.unmodifiableList(v);
+            publicV = result;
+        }
+        return result;
+    }
+
+    /**
+     * Return the public key as sent to a verifier, type tag included.
+     */
+    public byte[] getEncodedPublicV() {
+        byte[] result = encodedV;
+        if (result == null) {
+            result = FFSCodec.toByteArray(new ArrayList<>(getPublicV()));
+            encodedV = result;
+        }
+        return result;
+    }
+
+    /**
+     * Return the fingerprint of the public key, which a verifier that has seen
+     * the key before can look it up by.
+     */
+    public byte[] getFingerprint() {
+        byte[] result = fingerprint;
+        if (result == null) {
+            result = FFSKeyCache.fingerprint(getPublicV());
+            fingerprint = result;
+        }
+        return result;
+    }
+
+    /**
+     * Generate a fresh key.
+     *
+     * @param l Bit length of each prime factor of n
+     * @param k Number of secrets
+     */
+    public static FFSKey generate(int l, int k, SecureRandom random) {
+        BigInteger p = BigInteger.probablePrime(l, random);
+        BigInteger q = BigInteger.probablePrime(l, random);
+        BigInteger n = p.multiply(q);
+
+        ArrayList<BigInteger> s = new ArrayList<>(k);
+        while (s.size() < k) {
+            BigInteger bi = new BigInteger(2 * l, random);
+            if (bi.gcd(n).equals(BigInteger.ONE)) {
+                s.add(bi);
+            }
+        }
+
+        return new FFSKey(n, s);
+    }
+}
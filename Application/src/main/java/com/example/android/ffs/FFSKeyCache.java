@@ -0,0 +1,140 @@
+package com.example.android.ffs;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Public keys (n, V) of provers seen before, looked up by a short fingerprint.
+ * A prover that is already known only has to send the fingerprint instead of
+ * all k values of V. Keys are only stored after their fingerprint has been
+ * checked, so a prover cannot plant a key under somebody else's fingerprint.
+ * Keys derived from an identity are kept here as well, so they are derived
+ * only once. Bounded, the least recently used key is dropped first.
+ */
+public class FFSKeyCache {
+
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private final LinkedHashMap<ByteBuffer, List<BigInteger>> mKeys;
+    private long mHits;
+    private long mMisses;
+
+    public FFSKeyCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Maximum number of keys kept
+     */
+    public FFSKeyCache(final int capacity) {
+        mKeys = new LinkedHashMap<ByteBuffer, List<BigInteger>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, List<BigInteger>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Compute the fingerprint of a public key: the start of the SHA-256 of its
+     * encoded form.
+     *
+     * @param nv The public key [n, v_1, ..., v_k]
+     */
+    public static byte[] fingerprint(List<BigInteger> nv) {
+        byte[] hash = sha256(FFSCodec.toByteArray(new ArrayList<>(nv)));
+        return Arrays.copyOf(hash, FFSCodec.FINGERPRINT_LENGTH);
+    }
+
+    /**
+     * Look up the public key of an identity, deriving it on first use.
+     *
+     * @param k Number of v_i the verifier checks
+     * @return A copy of [n, v_1, ..., v_k]
+     */
+    public ArrayList<BigInteger> derive(BigInteger n, String identity, int k) {
+        byte[] message = FFSCodec.toIdentityMessage(n, identity);
+        // Hashed with k, as the same identity yields a longer V for a larger k
+        ByteBuffer id = ByteBuffer.wrap(Arrays.copyOf(sha256(ByteBuffer.allocate(message.length + 4)
+                .put(message).putInt(k).array()), FFSCodec.FINGERPRINT_LENGTH));
+        synchronized (this) {
+            List<BigInteger> nv = mKeys.get(id);
+            if (nv != null) {
+                mHits++;
+                return new ArrayList<>(nv);
+            }
+            mMisses++;
+        }
+        // Derived outside the lock, it takes a while and racing twice is harmless
+        ArrayList<BigInteger> nv = FFSIdentity.derivePublicV(n, identity, k);
+        synchronized (this) {
+            mKeys.put(id, new ArrayList<>(nv));
+        }
+        return nv;
+    }
+
+    /**
+     * Look up a key.
+     *
+     * @return A copy of [n, v_1, ..., v_k], or null if the key is unknown
+     */
+    public synchronized ArrayList<BigInteger> get(byte[] fingerprint) {
+        List<BigInteger> nv = mKeys.get(ByteBuffer.wrap(fingerprint));
+        if (nv == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return new ArrayList<>(nv);
+    }
+
+    /**
+     * Remember a key if it matches the fingerprint it was offered under.
+     *
+     * @return Whether the key was stored
+     */
+    public boolean put(byte[] fingerprint, List<BigInteger> nv) {
+        if (!Arrays.equals(fingerprint, fingerprint(nv))) {
+            return false;
+        }
+        ArrayList<BigInteger> copy = new ArrayList<>(nv);
+        synchronized (this) {
+            mKeys.put(ByteBuffer.wrap(fingerprint.clone()), copy);
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return mKeys.size();
+    }
+
+    /**
+     * @return Number of keys found by their fingerprint
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return Number of fingerprints that had to be followed by the full key
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
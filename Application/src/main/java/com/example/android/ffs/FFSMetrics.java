@@ -0,0 +1,174 @@
+package com.example.android.ffs;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time of an identification goes. Every {@link Phase} has a
+ * {@link LatencyHistogram}, and a few {@link Counter}s count rounds and bytes.
+ * One registry is shared by the whole process, see {@link #get()}. Recording
+ * never allocates.
+ * <pre>
+ * long t = System.nanoTime();
+ * BigInteger x = peggy.getX();
+ * t = FFSMetrics.get().lap(FFSMetrics.Phase.GET_X, t);
+ * </pre>
+ */
+public class FFSMetrics {
+
+    public enum Phase {
+        /** Generating the secret key, initFFS in the app */
+        KEYGEN,
+        /** FFSPeggy.getV */
+        GET_V,
+        /** FFSPeggy.getX */
+        GET_X,
+        /** FFSVictor.getA, drawing the challenge */
+        GET_A,
+        /** FFSPeggy.getY */
+        GET_Y,
+        /** FFSVictor.check */
+        CHECK,
+        /** Building a message with FFSCodec */
+        ENCODE,
+        /** Parsing a message with FFSCodec */
+        DECODE,
+        /** Waiting for the peer's next message, link time plus the peer's work */
+        WIRE
+    }
+
+    public enum Counter {
+        /** Rounds checked by a verifier */
+        ROUNDS,
+        /** Rounds a verifier rejected */
+        FAILED_ROUNDS,
+        BYTES_SENT,
+        BYTES_RECEIVED
+    }
+
+    private static final FFSMetrics DEFAULT = new FFSMetrics();
+
+    private final LatencyHistogram[] mPhases = new LatencyHistogram[Phase.values().length];
+    private final AtomicLongArray mCounters = new AtomicLongArray(Counter.values().length);
+
+    public FFSMetrics() {
+        for (int i = 0; i < mPhases.length; i++) {
+            mPhases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * The registry of this process.
+     */
+    public static FFSMetrics get() {
+        return DEFAULT;
+    }
+
+    public void record(Phase phase, long nanos) {
+        mPhases[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Record the time since {@code start} for the phase.
+     *
+     * @param start {@link System#nanoTime()} when the phase started
+     * @return The current {@link System#nanoTime()}, the start of whatever comes next
+     */
+    public long lap(Phase phase, long start) {
+        long now = System.nanoTime();
+        mPhases[phase.ordinal()].record(now - start);
+        return now;
+    }
+
+    public void increment(Counter counter) {
+        mCounters.incrementAndGet(counter.ordinal());
+    }
+
+    public void add(Counter counter, long delta) {
+        mCounters.addAndGet(counter.ordinal(), delta);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return mPhases[phase.ordinal()];
+    }
+
+    public long getCount(Counter counter) {
+        return mCounters.get(counter.ordinal());
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mPhases) {
+            histogram.reset();
+        }
+        for (int i = 0; i < mCounters.length(); i++) {
+            mCounters.set(i, 0);
+        }
+    }
+
+    /**
+     * One line per phase that was recorded, then the counters.
+     */
+    public String toSummary() {
+        StringBuilder text = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram h = getHistogram(phase);
+            if (h.getCount() == 0) {
+                continue;
+            }
+            text.append(String.format(Locale.US,
+                    "%s: n=%d mean=%.3f p50=%.3f p99=%.3f max=%.3f ms%n",
+                    phase, h.getCount(), h.getMeanNanos() / 1e6,
+                    h.getPercentileNanos(50) / 1e6, h.getPercentileNanos(99) / 1e6,
+                    h.getMaxNanos() / 1e6));
+        }
+        for (Counter counter : Counter.values()) {
+            text.append(counter).append(": ").append(getCount(counter)).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Everything recorded as JSON. Buckets are keyed by their lower bound in ns
+     * and only listed when not empty.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"phases\":{");
+        Phase[] phases = Phase.values();
+        for (int p = 0; p < phases.length; p++) {
+            LatencyHistogram h = getHistogram(phases[p]);
+            if (p > 0) {
+                json.append(',');
+            }
+            json.append('"').append(phases[p].name().toLowerCase(Locale.US)).append("\":{")
+                    .append("\"count\":").append(h.getCount())
+                    .append(",\"sum_ns\":").append(h.getSumNanos())
+                    .append(",\"max_ns\":").append(h.getMaxNanos())
+                    .append(",\"p50_ns\":").append(h.getPercentileNanos(50))
+                    .append(",\"p99_ns\":").append(h.getPercentileNanos(99))
+                    .append(",\"buckets\":{");
+            boolean first = true;
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                long count = h.getBucket(i);
+                if (count == 0) {
+                    continue;
+                }
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append('"').append(1L << i).append("\":").append(count);
+            }
+            json.append("}}");
+        }
+        json.append("},\"counters\":{");
+        Counter[] counters = Counter.values();
+        for (int c = 0; c < counters.length; c++) {
+            if (c > 0) {
+                json.append(',');
+            }
+            json.append('"').append(counters[c].name().toLowerCase(Locale.US)).append("\":")
+                    .append(getCount(counters[c]));
+        }
+        return json.append("}}").toString();
+    }
+}
@@ -3,12 +3,13 @@ package com.example.android.ffs
 import java.math.BigInteger
 import java.security.SecureRandom
 
-class FFSPeggy(
+class FFSPeggy @JvmOverloads constructor(
     private val n: BigInteger,
     private val s: ArrayList<BigInteger>,
     private val l: Int,                     // Security parameter
-    private val k: Int,                     // Security parameter
-    seed: ByteArray
+    val k: Int,                             // Security parameter
+    seed: ByteArray,
+    private val publicV: List<BigInteger>? = null   // Precomputed [n, v_1, ..., v_k], see FFSKey
 ) {
     private val random: SecureRandom = SecureRandom(seed)
 
@@ -21,13 +22,23 @@ class FFSPeggy(
     private val negativeOne = BigInteger("-1")
     private val negativeTwo = two.times(negativeOne)
 
-    // State
+    // State, every change is reported to the listener
+    var listener: FFSStepListener? = null
     public var currentStep = 0
+        set(value) {
+            field = value
+            listener?.onStep(FFSStepListener.PEGGY, value)
+        }
 
     fun getV(): ArrayList<BigInteger> {
         currentStep = 1
 
         v.clear()
+        if (publicV != null) {
+            v.addAll(publicV)
+            return v
+        }
+
         v.add(n)
         for (i in 0 until k) {
             // v_i = s_i^(-2) mod n
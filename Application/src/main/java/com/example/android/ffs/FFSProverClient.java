@@ -0,0 +1,186 @@
+package com.example.android.ffs;
+
+import com.example.android.transport.Connection;
+import com.example.android.transport.FramedConnection;
+import com.example.android.transport.Transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Proves one identity to several verifiers at once. Every target gets its own
+ * connection and {@link FFSPeggy}, while the key and the public vector V are
+ * shared read-only between them, so V is computed only once. A session whose
+ * connection drops is resumed on a new connection a few times before it fails.
+ * Large public keys are offered by fingerprint first, so verifiers that know
+ * the key already do not receive V again, and identity-based keys only send
+ * the identity. The tickets verifiers issue are kept per address and presented
+ * on the next identification, see {@link FFSTicketStore}.
+ */
+public class FFSProverClient {
+
+    /**
+     * Callbacks for the life of every session. Called from the session threads.
+     */
+    public interface Listener {
+        void onSessionStarted(int sessionId, String remoteName);
+
+        void onSessionFinished(int sessionId, String remoteName, boolean verified,
+                               long elapsedNanos);
+
+        void onSessionFailed(int sessionId, String remoteName, IOException e);
+    }
+
+    // Reconnects per session after a drop, and the pause before each
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+    private static final long RESUME_DELAY_MILLIS = 250;
+
+    private final FFSKey mKey;
+    private final int mL;
+    private final int mRounds;
+    private final Listener mListener;
+    private volatile boolean mCommit;
+    private final ExecutorService mExecutor;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final AtomicInteger mNextSessionId = new AtomicInteger();
+    private final Set<Connection> mConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final ConcurrentHashMap<String, byte[]> mTickets = new ConcurrentHashMap<>();
+
+    /**
+     * @param key           Prover key shared by all sessions
+     * @param l             Security parameter the key was generated with
+     * @param rounds        Number of challenge rounds per session
+     * @param maxConcurrent Upper bound of sessions running at the same time
+     * @param listener      Receives session events
+     */
+    public FFSProverClient(FFSKey key, int l, int rounds, int maxConcurrent, Listener listener) {
+        mKey = key;
+        mL = l;
+        mRounds = rounds;
+        mListener = listener;
+        mExecutor = Executors.newFixedThreadPool(maxConcurrent, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ProverSession-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Send a short hash of every x instead of x itself, for sessions started
+     * from now on. Saves about a third of the bytes of every round.
+     */
+    public void setHashCommitments(boolean commit) {
+        mCommit = commit;
+    }
+
+    /**
+     * Schedule an identification to the verifier at the given address.
+     *
+     * @return Whether the verifier accepted every round
+     */
+    public Future<Boolean> prove(final Transport transport, final String address) {
+        final int sessionId = mNextSessionId.incrementAndGet();
+        return mExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return run(sessionId, transport, address);
+            }
+        });
+    }
+
+    private boolean run(int sessionId, Transport transport, String address) throws IOException {
+        mListener.onSessionStarted(sessionId, address);
+
+        byte[] seed = new byte[32];
+        mRandom.nextBytes(seed);
+        FFSPeggy peggy = new FFSPeggy(mKey.getN(), mKey.getS(), mL, mKey.getS().size(), seed,
+                mKey.getPublicV());
+
+        FFSSession session = new FFSSession(mRandom);
+        session.setTicket(mTickets.get(address));
+        long start = System.nanoTime();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                boolean verified = runOnce(transport, address, peggy, session);
+                byte[] ticket = session.getTicket();
+                if (verified && ticket != null) {
+                    mTickets.put(address, ticket);
+                } else {
+                    mTickets.remove(address);
+                }
+                mListener.onSessionFinished(sessionId, address, verified, System.nanoTime() - start);
+                return verified;
+            } catch (IOException e) {
+                // Only worth another try if the verifier may still know the session
+                if (attempt == MAX_RESUME_ATTEMPTS || !session.isOpen() || mExecutor.isShutdown()) {
+                    mListener.onSessionFailed(sessionId, address, e);
+                    throw e;
+                }
+            }
+
+            try {
+                Thread.sleep(RESUME_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                InterruptedIOException failure = new InterruptedIOException("Session aborted");
+                mListener.onSessionFailed(sessionId, address, failure);
+                throw failure;
+            }
+        }
+    }
+
+    private boolean runOnce(Transport transport, String address, FFSPeggy peggy,
+                            FFSSession session) throws IOException {
+        Connection connection = transport.open(address);
+        mConnections.add(connection);
+        try (FramedConnection frames = new FramedConnection(connect(connection))) {
+            return FFSExchange.prove(frames, peggy, mRounds, session, mKey, mCommit);
+        } finally {
+            mConnections.remove(connection);
+        }
+    }
+
+    private static Connection connect(Connection connection) throws IOException {
+        try {
+            connection.connect();
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Forget the ticket of every verifier, so the next identifications run in full.
+     */
+    public void clearTickets() {
+        mTickets.clear();
+    }
+
+    /**
+     * Abort all running sessions.
+     */
+    public void stop() {
+        mExecutor.shutdownNow();
+        for (Connection connection : mConnections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.android.ffs;
+
+import java.security.SecureRandom;
+
+/**
+ * Prover side of a resumable identification. Remembers the id the verifier
+ * keeps the public vector under, so that after a dropped connection
+ * {@link FFSExchange#prove(com.example.android.transport.FramedConnection,
+ * FFSPeggy, int, FFSSession, FFSKey, boolean)} does not send V again. The
+ * rounds run again in full, the verifier does not credit those passed before.
+ * Also carries the ticket of the verifier, if any, see {@link FFSTicketStore}.
+ * Used by one thread at a time.
+ */
+public class FFSSession {
+
+    private final long mId;
+    private boolean mOpen;
+    private int mRoundsPassed;
+    private boolean mVerified = true;
+    private byte[] mTicket;
+
+    public FFSSession(SecureRandom random) {
+        mId = random.nextLong();
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * @return Whether V has been sent at least once, so resuming is worth a try
+     */
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    public int getRoundsPassed() {
+        return mRoundsPassed;
+    }
+
+    /**
+     * @return Whether every round answered so far was accepted
+     */
+    public boolean isVerified() {
+        return mVerified;
+    }
+
+    /**
+     * @return The ticket to present to the verifier, or the one it issued at the
+     * end of a full identification, null if there is none
+     */
+    public byte[] getTicket() {
+        return mTicket;
+    }
+
+    public void setTicket(byte[] ticket) {
+        mTicket = ticket;
+    }
+
+    void restart() {
+        mOpen = true;
+        mRoundsPassed = 0;
+        mVerified = true;
+    }
+
+    void resume() {
+        // Rounds are not carried over, only V. Verdicts received before the
+        // drop still count, as they do for the verifier.
+        mRoundsPassed = 0;
+    }
+
+    void roundDone(boolean accepted) {
+        mRoundsPassed++;
+        mVerified &= accepted;
+    }
+}
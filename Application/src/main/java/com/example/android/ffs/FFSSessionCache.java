@@ -0,0 +1,141 @@
+package com.example.android.ffs;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Verifier side of resumable identifications. Keeps the public vector (n, V)
+ * of every unfinished session for a while, so a prover that lost its
+ * connection can come back without sending V. It still has to pass all rounds
+ * again: the session id crosses the link in clear, so it proves nothing.
+ * Bounded, the least recently used session is dropped first.
+ */
+public class FFSSessionCache {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+
+    private final long mTtlNanos;
+    private final LinkedHashMap<Long, Session> mEntries;
+    private long mHits;
+    private long mMisses;
+
+    public FFSSessionCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param capacity  Maximum number of sessions kept
+     * @param ttlMillis How long an idle session can be resumed
+     */
+    public FFSSessionCache(final int capacity, long ttlMillis) {
+        mTtlNanos = ttlMillis * 1000000;
+        mEntries = new LinkedHashMap<Long, Session>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Session> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Remember a new session.
+     *
+     * @param nv The public vector [n, v_1, ..., v_k] as received, it is copied
+     * @return The session, or null if a live one has that id already
+     */
+    synchronized Session open(long id, ArrayList<BigInteger> nv) {
+        Session entry = mEntries.get(id);
+        if (entry != null && !isExpired(entry)) {
+            return null;
+        }
+        entry = new Session(new ArrayList<>(nv));
+        mEntries.put(id, entry);
+        return entry;
+    }
+
+    /**
+     * Look up a session the prover wants to continue.
+     *
+     * @return The session, or null if it is unknown or expired
+     */
+    synchronized Session resume(long id) {
+        Session entry = mEntries.get(id);
+        if (entry != null && isExpired(entry)) {
+            mEntries.remove(id);
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        entry.touch();
+        return entry;
+    }
+
+    /**
+     * Forget a session that has run all its rounds.
+     */
+    synchronized void finish(long id) {
+        mEntries.remove(id);
+    }
+
+    private boolean isExpired(Session entry) {
+        return System.nanoTime() - entry.getLastUsed() > mTtlNanos;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return Number of sessions resumed
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return Number of resumptions refused, the prover had to start over
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    static class Session {
+        private final ArrayList<BigInteger> mNV;
+        private boolean mVerified = true;
+        private long mLastUsed = System.nanoTime();
+
+        Session(ArrayList<BigInteger> nv) {
+            mNV = nv;
+        }
+
+        /**
+         * @return A copy of [n, v_1, ..., v_k], {@link FFSVictor#receiveV} modifies it
+         */
+        ArrayList<BigInteger> getNV() {
+            return new ArrayList<>(mNV);
+        }
+
+        synchronized boolean isVerified() {
+            return mVerified;
+        }
+
+        synchronized void roundDone(boolean accepted) {
+            mVerified &= accepted;
+            mLastUsed = System.nanoTime();
+        }
+
+        synchronized void touch() {
+            mLastUsed = System.nanoTime();
+        }
+
+        synchronized long getLastUsed() {
+            return mLastUsed;
+        }
+    }
+}
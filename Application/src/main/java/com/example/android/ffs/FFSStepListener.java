@@ -0,0 +1,19 @@
+package com.example.android.ffs;
+
+/**
+ * Told about every step {@link FFSPeggy} and {@link FFSVictor} take, for
+ * tracing. Called on the thread that drives the protocol, so it should return
+ * quickly.
+ */
+public interface FFSStepListener {
+
+    // Names of the two parties, usable as log tags
+    String PEGGY = "FFSPeggy";
+    String VICTOR = "FFSVictor";
+
+    /**
+     * @param party {@link #PEGGY} or {@link #VICTOR}
+     * @param step  The step the party is at now
+     */
+    void onStep(String party, int step);
+}
@@ -0,0 +1,183 @@
+package com.example.android.ffs;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Tickets a verifier hands to provers that passed a full identification. A
+ * prover presenting a valid ticket before it expires gets away with
+ * {@link #getTicketRounds()} rounds instead of all of them, and does not send
+ * V again.
+ * <p>
+ * A ticket is a random id, its expiry time and an HMAC over both and the
+ * fingerprint of the prover's key, under a key that never leaves this store,
+ * so tickets cannot be forged or extended. The store remembers the public key
+ * of every ticket it issued. It is bounded, and the least recently used
+ * ticket is dropped first.
+ */
+public class FFSTicketStore {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long DEFAULT_LIFETIME_MILLIS = 10 * 60 * 1000;
+    public static final int DEFAULT_TICKET_ROUNDS = 1;
+
+    // Random id, expiry in milliseconds since the epoch, and the MAC
+    private static final int ID_LENGTH = 16;
+    private static final int MAC_LENGTH = 16;
+    public static final int TICKET_LENGTH = ID_LENGTH + 8 + MAC_LENGTH;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final long mLifetimeMillis;
+    private final int mTicketRounds;
+    private final SecretKeySpec mKey;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final LinkedHashMap<ByteBuffer, List<BigInteger>> mTickets;
+    private long mIssued;
+    private long mHits;
+    private long mMisses;
+
+    public FFSTicketStore() {
+        this(DEFAULT_CAPACITY, DEFAULT_LIFETIME_MILLIS, DEFAULT_TICKET_ROUNDS);
+    }
+
+    /**
+     * @param capacity       Maximum number of tickets kept
+     * @param lifetimeMillis How long a ticket is valid after it was issued
+     * @param ticketRounds   Rounds a prover with a ticket still has to pass, may be 0
+     */
+    public FFSTicketStore(final int capacity, long lifetimeMillis, int ticketRounds) {
+        mLifetimeMillis = lifetimeMillis;
+        mTicketRounds = ticketRounds;
+        byte[] key = new byte[32];
+        mRandom.nextBytes(key);
+        mKey = new SecretKeySpec(key, MAC_ALGORITHM);
+        mTickets = new LinkedHashMap<ByteBuffer, List<BigInteger>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, List<BigInteger>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Read the expiry of a ticket, which the prover can do as well.
+     *
+     * @return Milliseconds since the epoch
+     */
+    public static long expiresAt(byte[] ticket) {
+        return ByteBuffer.wrap(ticket, ID_LENGTH, 8).getLong();
+    }
+
+    /**
+     * Issue a ticket to a prover that passed.
+     *
+     * @param nv The public key [n, v_1, ..., v_k] of the prover
+     */
+    public byte[] issue(List<BigInteger> nv) {
+        byte[] ticket = new byte[TICKET_LENGTH];
+        byte[] id = new byte[ID_LENGTH];
+        mRandom.nextBytes(id);
+        ByteBuffer.wrap(ticket)
+                .put(id)
+                .putLong(System.currentTimeMillis() + mLifetimeMillis)
+                .put(mac(ticket, nv));
+
+        ArrayList<BigInteger> copy = new ArrayList<>(nv);
+        synchronized (this) {
+            mTickets.put(ByteBuffer.wrap(id), copy);
+            mIssued++;
+        }
+        return ticket;
+    }
+
+    /**
+     * Check a ticket.
+     *
+     * @return A copy of the public key it was issued for, or null if the ticket
+     * is unknown, expired or forged
+     */
+    public ArrayList<BigInteger> redeem(byte[] ticket) {
+        List<BigInteger> nv = null;
+        if (ticket.length == TICKET_LENGTH && expiresAt(ticket) > System.currentTimeMillis()) {
+            synchronized (this) {
+                nv = mTickets.get(ByteBuffer.wrap(ticket, 0, ID_LENGTH).slice());
+            }
+        }
+        if (nv != null && !MessageDigest.isEqual(mac(ticket, nv),
+                Arrays.copyOfRange(ticket, TICKET_LENGTH - MAC_LENGTH, TICKET_LENGTH))) {
+            nv = null;
+        }
+
+        synchronized (this) {
+            if (nv == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        return new ArrayList<>(nv);
+    }
+
+    /**
+     * Forget a ticket, for instance because its holder then failed a round.
+     */
+    public synchronized void revoke(byte[] ticket) {
+        if (ticket.length == TICKET_LENGTH) {
+            mTickets.remove(ByteBuffer.wrap(ticket, 0, ID_LENGTH).slice());
+        }
+    }
+
+    public int getTicketRounds() {
+        return mTicketRounds;
+    }
+
+    public synchronized int size() {
+        return mTickets.size();
+    }
+
+    public synchronized long getIssued() {
+        return mIssued;
+    }
+
+    /**
+     * @return Number of valid tickets presented
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return Number of tickets refused, the prover had to identify in full
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * MAC of the id and expiry at the start of the ticket, bound to the key.
+     */
+    private byte[] mac(byte[] ticket, List<BigInteger> nv) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(mKey);
+            mac.update(ticket, 0, ID_LENGTH + 8);
+            mac.update(FFSKeyCache.fingerprint(nv));
+            return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+        } catch (GeneralSecurityException e) {
+            // Every Java platform has to provide HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.example.android.ffs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Records spans of time, {@link #begin(String)} to {@link #end()}, on every
+ * thread of an identification, to show on a timeline how the prover, the link
+ * and the verifier take turns. {@link #writeChromeJson(Appendable)} exports them
+ * as Chrome trace events, which chrome://tracing and the Perfetto UI open.
+ * <pre>
+ * FFSTrace.begin("getX");
+ * try {
+ *     x = peggy.getX();
+ * } finally {
+ *     FFSTrace.end();
+ * }
+ * </pre>
+ * Every begin needs its end, also when the span throws, as an end pops the
+ * span begun last on its thread. Spans begun while not enabled are popped
+ * too, only never recorded.
+ * <p>
+ * Every thread writes into a buffer of its own, so recording takes no lock
+ * and, once the buffer exists, allocates nothing. A thread keeps at most
+ * {@link #DEFAULT_CAPACITY} spans per recording, later ones are dropped.
+ * Span names are expected to be constants.
+ * <p>
+ * On a device the spans can go to {@code android.os.Trace} as well, see
+ * {@link #setSections(Sections)}, so they line up with the system's own
+ * threads in a Perfetto or systrace capture.
+ */
+public class FFSTrace {
+
+    /**
+     * Where spans are mirrored as they begin and end, such as
+     * {@code android.os.Trace}. Both are called on the thread of the span.
+     */
+    public interface Sections {
+        void beginSection(String name);
+
+        void endSection();
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    // Spans nested deeper than this are not recorded, only counted
+    private static final int MAX_DEPTH = 32;
+
+    private static final long BASE_NANOS = System.nanoTime();
+
+    // Buffers written in the current recording
+    private static final ArrayList<Buffer> BUFFERS = new ArrayList<>();
+
+    private static final ThreadLocal<Buffer> LOCAL = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer(Thread.currentThread());
+        }
+    };
+
+    private static volatile boolean mEnabled;
+    private static volatile int mGeneration;
+    private static volatile Sections mSections;
+
+    private static class Buffer {
+        final long mTid;
+        final String mThreadName;
+        final String[] mNames = new String[DEFAULT_CAPACITY];
+        final long[] mStarts = new long[DEFAULT_CAPACITY];
+        final long[] mDurations = new long[DEFAULT_CAPACITY];
+        // Spans before this index are complete, written last so export can read them
+        volatile int mCount;
+        volatile int mDropped;
+        int mGeneration = -1;
+
+        // Spans begun but not ended, whether recorded or not, so every end
+        // pops the span of its own begin. The generation is -1 when the span
+        // began while not enabled.
+        final String[] mOpenNames = new String[MAX_DEPTH];
+        final long[] mOpenStarts = new long[MAX_DEPTH];
+        final boolean[] mOpenSections = new boolean[MAX_DEPTH];
+        final int[] mOpenGenerations = new int[MAX_DEPTH];
+        int mDepth;
+
+        Buffer(Thread thread) {
+            mTid = thread.getId();
+            mThreadName = thread.getName();
+        }
+    }
+
+    private FFSTrace() {
+    }
+
+    /**
+     * Switching on starts a new recording, dropping all spans recorded so far.
+     */
+    public static void setEnabled(boolean enabled) {
+        if (enabled) {
+            synchronized (BUFFERS) {
+                BUFFERS.clear();
+                mGeneration++;
+            }
+        }
+        mEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @param sections Where to mirror spans, null for nowhere
+     */
+    public static void setSections(Sections sections) {
+        mSections = sections;
+    }
+
+    /**
+     * Begin a span on the current thread. Only recorded while enabled.
+     *
+     * @param name A constant, it is kept as it is
+     */
+    public static void begin(String name) {
+        Buffer buffer = LOCAL.get();
+        int depth = buffer.mDepth++;
+        if (!mEnabled) {
+            if (depth < MAX_DEPTH) {
+                buffer.mOpenSections[depth] = false;
+                buffer.mOpenGenerations[depth] = -1;
+            }
+            return;
+        }
+        int generation = mGeneration;
+        if (buffer.mGeneration != generation) {
+            // First span of this thread in a new recording, spans still open
+            // stay on the stack and are ended, just not recorded
+            buffer.mCount = 0;
+            buffer.mDropped = 0;
+            buffer.mGeneration = generation;
+            synchronized (BUFFERS) {
+                BUFFERS.add(buffer);
+            }
+        }
+
+        if (depth < MAX_DEPTH) {
+            Sections sections = mSections;
+            buffer.mOpenNames[depth] = name;
+            buffer.mOpenSections[depth] = sections != null;
+            buffer.mOpenGenerations[depth] = generation;
+            if (sections != null) {
+                sections.beginSection(name);
+            }
+            buffer.mOpenStarts[depth] = System.nanoTime();
+        }
+    }
+
+    /**
+     * End the span begun last on the current thread. Its section is always
+     * ended, the span is recorded only if it began in the current recording
+     * and tracing is still enabled.
+     */
+    public static void end() {
+        long now = System.nanoTime();
+        Buffer buffer = LOCAL.get();
+        if (buffer.mDepth == 0) {
+            return;
+        }
+
+        int depth = --buffer.mDepth;
+        boolean record = mEnabled && buffer.mGeneration == mGeneration;
+        if (depth >= MAX_DEPTH) {
+            if (record) {
+                buffer.mDropped++;
+            }
+            return;
+        }
+        if (buffer.mOpenSections[depth]) {
+            // Even if mirroring was switched off since, the section is open
+            Sections sections = mSections;
+            if (sections != null) {
+                sections.endSection();
+            }
+        }
+        if (!record || buffer.mOpenGenerations[depth] != buffer.mGeneration) {
+            return;
+        }
+        int count = buffer.mCount;
+        if (count == DEFAULT_CAPACITY) {
+            buffer.mDropped++;
+            return;
+        }
+        buffer.mNames[count] = buffer.mOpenNames[depth];
+        buffer.mStarts[count] = buffer.mOpenStarts[depth];
+        buffer.mDurations[count] = now - buffer.mOpenStarts[depth];
+        buffer.mCount = count + 1;
+    }
+
+    /**
+     * Number of spans of the current recording that did not fit.
+     */
+    public static long getDropped() {
+        long dropped = 0;
+        synchronized (BUFFERS) {
+            for (Buffer buffer : BUFFERS) {
+                dropped += buffer.mDropped;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Write every span of the current recording as a Chrome trace event file:
+     * a complete ("X") event per span and the name of every thread.
+     */
+    public static void writeChromeJson(Appendable out) throws IOException {
+        ArrayList<Buffer> buffers;
+        synchronized (BUFFERS) {
+            buffers = new ArrayList<>(BUFFERS);
+        }
+
+        out.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Buffer buffer : buffers) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":")
+                    .append(Long.toString(buffer.mTid))
+                    .append(",\"args\":{\"name\":\"");
+            escape(buffer.mThreadName, out);
+            out.append("\"}}");
+
+            int count = buffer.mCount;
+            for (int i = 0; i < count; i++) {
+                out.append(",\n{\"name\":\"");
+                escape(buffer.mNames[i], out);
+                out.append(String.format(Locale.US,
+                        "\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f}",
+                        buffer.mTid, (buffer.mStarts[i] - BASE_NANOS) / 1e3,
+                        buffer.mDurations[i] / 1e3));
+            }
+        }
+        out.append("\n]}\n");
+    }
+
+    private static void escape(String text, Appendable out) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
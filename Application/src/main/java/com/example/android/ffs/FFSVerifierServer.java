@@ -0,0 +1,248 @@
+package com.example.android.ffs;
+
+import com.example.android.transport.Connection;
+import com.example.android.transport.FramedConnection;
+import com.example.android.transport.ServerEndpoint;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies many provers at once. Every endpoint handed to {@link #serve(ServerEndpoint)}
+ * keeps accepting, and each accepted connection becomes a session with its own
+ * {@link FFSVictor}, run on a bounded pool. Connections arriving while all
+ * sessions are busy are closed right away. Provers that lost their connection
+ * can resume their session for {@link FFSSessionCache#DEFAULT_TTL_MILLIS},
+ * provers seen before only send the fingerprint of their public key, and
+ * provers that passed get a ticket that shortens their next identification.
+ */
+public class FFSVerifierServer {
+
+    /**
+     * Callbacks for the life of every session. Called from the session threads.
+     */
+    public interface Listener {
+        void onSessionStarted(int sessionId, String remoteName);
+
+        void onSessionFinished(int sessionId, String remoteName, boolean verified,
+                               long elapsedNanos);
+
+        void onSessionFailed(int sessionId, String remoteName, IOException e);
+
+        void onSessionRejected(String remoteName);
+    }
+
+    private final int mK;
+    private final int mRounds;
+    private final Listener mListener;
+    private final ThreadPoolExecutor mExecutor;
+    private final ArrayList<AcceptLoop> mAcceptLoops = new ArrayList<>();
+    private final Set<Connection> mConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final SecureRandom mRandom = new SecureRandom();
+    private final FFSSessionCache mSessionCache = new FFSSessionCache();
+    private final FFSKeyCache mKeyCache = new FFSKeyCache();
+    private final FFSTicketStore mTicketStore = new FFSTicketStore();
+    private volatile BigInteger mTrustedN;
+
+    private final AtomicInteger mNextSessionId = new AtomicInteger();
+    private final AtomicInteger mActiveSessions = new AtomicInteger();
+    private final AtomicLong mCompletedSessions = new AtomicLong();
+    private final AtomicLong mRejectedSessions = new AtomicLong();
+    private final long mStartNanos = System.nanoTime();
+
+    /**
+     * @param k           Number of secrets the provers use
+     * @param rounds      Number of challenge rounds per session
+     * @param maxSessions Upper bound of concurrent sessions
+     * @param listener    Receives session events
+     */
+    public FFSVerifierServer(int k, int rounds, int maxSessions, Listener listener) {
+        mK = k;
+        mRounds = rounds;
+        mListener = listener;
+        mExecutor = new ThreadPoolExecutor(maxSessions, maxSessions, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "VerifierSession-" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start accepting sessions on the given endpoint. The server owns the
+     * endpoint from now on and closes it in {@link #stop()}.
+     */
+    public synchronized void serve(ServerEndpoint endpoint) {
+        AcceptLoop loop = new AcceptLoop(endpoint);
+        mAcceptLoops.add(loop);
+        loop.start();
+    }
+
+    /**
+     * Stop accepting and abort all running sessions.
+     */
+    public synchronized void stop() {
+        for (AcceptLoop loop : mAcceptLoops) {
+            loop.cancel();
+        }
+        mAcceptLoops.clear();
+        mExecutor.shutdownNow();
+        for (Connection connection : mConnections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    public int getActiveSessions() {
+        return mActiveSessions.get();
+    }
+
+    public long getCompletedSessions() {
+        return mCompletedSessions.get();
+    }
+
+    public long getRejectedSessions() {
+        return mRejectedSessions.get();
+    }
+
+    /**
+     * Return the sessions kept for provers that may come back.
+     */
+    public FFSSessionCache getSessionCache() {
+        return mSessionCache;
+    }
+
+    /**
+     * Return the public keys of the provers seen so far.
+     */
+    public FFSKeyCache getKeyCache() {
+        return mKeyCache;
+    }
+
+    /**
+     * Return the tickets issued to provers that passed.
+     */
+    public FFSTicketStore getTicketStore() {
+        return mTicketStore;
+    }
+
+    /**
+     * Accept identity-based keys issued by the key center with this modulus.
+     * Without one, provers have to send their public key.
+     *
+     * @param n The modulus of the trusted key center, null to accept no identities
+     */
+    public void setTrustedModulus(BigInteger n) {
+        mTrustedN = n;
+    }
+
+    /**
+     * Return the number of completed sessions per second since the server was
+     * created.
+     */
+    public double getThroughput() {
+        double seconds = (System.nanoTime() - mStartNanos) / 1e9;
+        return seconds > 0 ? mCompletedSessions.get() / seconds : 0;
+    }
+
+    private void dispatch(final Connection connection) {
+        try {
+            mExecutor.execute(new Session(mNextSessionId.incrementAndGet(), connection));
+        } catch (RejectedExecutionException e) {
+            mRejectedSessions.incrementAndGet();
+            mListener.onSessionRejected(connection.getRemoteName());
+            try {
+                connection.close();
+            } catch (IOException e2) {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    private class AcceptLoop extends Thread {
+        private final ServerEndpoint mEndpoint;
+
+        AcceptLoop(ServerEndpoint endpoint) {
+            super("VerifierAccept " + endpoint.getAddress());
+            mEndpoint = endpoint;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Connection connection;
+                try {
+                    connection = mEndpoint.accept();
+                } catch (IOException e) {
+                    // Endpoint closed
+                    break;
+                }
+                dispatch(connection);
+            }
+        }
+
+        void cancel() {
+            try {
+                mEndpoint.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private class Session implements Runnable {
+        private final int mId;
+        private final Connection mConnection;
+
+        Session(int id, Connection connection) {
+            mId = id;
+            mConnection = connection;
+        }
+
+        @Override
+        public void run() {
+            String remoteName = mConnection.getRemoteName();
+            mActiveSessions.incrementAndGet();
+            mListener.onSessionStarted(mId, remoteName);
+
+            byte[] seed = new byte[32];
+            mRandom.nextBytes(seed);
+            // n is taken from the V the prover sends
+            FFSVictor victor = new FFSVictor(BigInteger.ONE, mK, seed);
+
+            long start = System.nanoTime();
+            mConnections.add(mConnection);
+            try (FramedConnection frames = new FramedConnection(mConnection)) {
+                boolean verified = FFSExchange.verify(frames, victor, mRounds, mSessionCache,
+                        mKeyCache, mTicketStore, mTrustedN);
+                mCompletedSessions.incrementAndGet();
+                mListener.onSessionFinished(mId, remoteName, verified, System.nanoTime() - start);
+            } catch (IOException e) {
+                mListener.onSessionFailed(mId, remoteName, e);
+            } finally {
+                mConnections.remove(mConnection);
+                mActiveSessions.decrementAndGet();
+            }
+        }
+    }
+}
@@ -1,11 +1,12 @@
 package com.example.android.ffs
 
 import java.math.BigInteger
+import java.security.MessageDigest
 import java.security.SecureRandom
 
 class FFSVictor(
         private var n: BigInteger,
-        private val k: Int,         // Security parameter
+        val k: Int,                 // Security parameter
         seed: ByteArray
 ) {
     private val random: SecureRandom = SecureRandom(seed)
@@ -15,14 +16,20 @@ class FFSVictor(
     // Recieved values
     private var v: ArrayList<BigInteger> = ArrayList(0)
     private var x: BigInteger = BigInteger("0")
+    private var commitment: ByteArray? = null   // Hash of x if only that was sent
 
     // Helper values
     private val two = BigInteger("2")
     private val negativeOne = BigInteger("-1")
     private val negativeTwo = two.times(negativeOne)
 
-    // State
+    // State, every change is reported to the listener
+    var listener: FFSStepListener? = null
     public var currentStep = 0
+        set(value) {
+            field = value
+            listener?.onStep(FFSStepListener.VICTOR, value)
+        }
     var gotV = false
 
     fun receiveV(v: ArrayList<BigInteger>) {
@@ -40,6 +47,7 @@ class FFSVictor(
         currentStep = 2
 
         this.x = x
+        this.commitment = null
 
         a.clear()
         for (i in 0 until k) {
@@ -49,6 +57,14 @@ class FFSVictor(
         return a
     }
 
+    // Challenge a prover that only committed to a hash of x, see FFSCodec.commit
+    fun getA(commitment: ByteArray): ArrayList<Boolean> {
+        val a = getA(BigInteger.ZERO)
+        this.commitment = commitment
+
+        return a
+    }
+
     fun check(y: BigInteger): Boolean {
         currentStep = 3
 
@@ -63,6 +79,12 @@ class FFSVictor(
 
         val resNegative = res.times(negativeOne).mod(n)
 
+        val c = commitment
+        if (c != null) {
+            return MessageDigest.isEqual(c, FFSCodec.commit(res)) ||
+                    MessageDigest.isEqual(c, FFSCodec.commit(resNegative))
+        }
+
         return x == res || x == resNegative
     }
 
@@ -0,0 +1,99 @@
+package com.example.android.ffs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with fixed power-of-two buckets:
+ * bucket i counts durations in [2^i, 2^(i+1)) ns. Recording is a few atomic
+ * adds and never allocates, so it can sit on the protocol's hot path and be
+ * used from any number of threads. Percentiles are only as exact as the
+ * buckets, within a factor of two.
+ */
+public class LatencyHistogram {
+
+    // 2^40 ns is about 18 minutes, anything longer goes into the last bucket
+    public static final int BUCKETS = 41;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets.incrementAndGet(bucket(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+            // Lost a race with a larger or another value, look again
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSumNanos() {
+        return mSum.get();
+    }
+
+    public long getMaxNanos() {
+        return mMax.get();
+    }
+
+    public long getMeanNanos() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * Count of bucket i, durations in [2^i, 2^(i+1)) ns.
+     */
+    public long getBucket(int i) {
+        return mBuckets.get(i);
+    }
+
+    /**
+     * Estimate a percentile as the upper bound of the bucket it falls into,
+     * capped at the largest duration recorded.
+     *
+     * @param percentile Between 0 and 100
+     * @return Nanoseconds, 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    private static int bucket(long nanos) {
+        return Math.min(63 - Long.numberOfLeadingZeros(nanos | 1), BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return (1L << (bucket + 1)) - 1;
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.android.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream to a remote device. Closing the connection from
+ * any thread aborts a pending {@link #connect()} and makes blocked reads fail.
+ */
+public interface Connection extends Closeable {
+
+    /**
+     * Establish the connection. This is a blocking call and will only return on
+     * a successful connection or an exception. Does nothing for connections
+     * returned by {@link ServerEndpoint#accept()}.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Return a human readable name of the remote device.
+     */
+    String getRemoteName();
+
+    /**
+     * Return the address of the remote device.
+     */
+    String getRemoteAddress();
+}
@@ -0,0 +1,127 @@
+package com.example.android.transport;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link Connection} decorator that counts every read and write call on the
+ * streams of another connection into a {@link WireStats}: bytes, how large
+ * reads are, and how long writes block.
+ */
+public class CountingConnection implements Connection {
+
+    private final Connection mConnection;
+    private final WireStats mStats;
+    private InputStream mIn;
+    private OutputStream mOut;
+
+    public CountingConnection(Connection connection, WireStats stats) {
+        mConnection = connection;
+        mStats = stats;
+    }
+
+    public WireStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mConnection.connect();
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (mIn == null) {
+            mIn = new CountingInputStream(mConnection.getInputStream(), mStats);
+        }
+        return mIn;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (mOut == null) {
+            mOut = new CountingOutputStream(mConnection.getOutputStream(), mStats);
+        }
+        return mOut;
+    }
+
+    @Override
+    public String getRemoteName() {
+        return mConnection.getRemoteName();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mConnection.getRemoteAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mConnection.close();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final WireStats mStats;
+
+        CountingInputStream(InputStream in, WireStats stats) {
+            super(in);
+            mStats = stats;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            mStats.onRead(b < 0 ? -1 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            mStats.onRead(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes were still received
+            long skipped = in.skip(n);
+            mStats.onRead((int) skipped);
+            return skipped;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final WireStats mStats;
+
+        CountingOutputStream(OutputStream out, WireStats stats) {
+            super(out);
+            mStats = stats;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            mStats.onWrite(1, System.nanoTime() - start);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write byte by byte
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            mStats.onWrite(len, System.nanoTime() - start);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            mStats.onWrite(0, System.nanoTime() - start);
+        }
+    }
+}
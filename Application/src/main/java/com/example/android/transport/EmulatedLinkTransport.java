@@ -0,0 +1,269 @@
+package com.example.android.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link Transport} decorator that makes the connected streams of another
+ * transport behave like a slow radio link. Every write is split into MTU sized
+ * fragments, each fragment occupies the link for its serialization time and is
+ * delivered to the remote end after the one-way latency plus jitter. Fragments
+ * are never reordered. Occasionally the link stalls and the writer blocks.
+ * <p>
+ * Only the outgoing direction of each connection is shaped, so both ends should
+ * use the emulated transport.
+ */
+public class EmulatedLinkTransport implements Transport {
+
+    private final Transport mTransport;
+    private final LinkProfile mProfile;
+    private final long mSeed;
+
+    public EmulatedLinkTransport(Transport transport, LinkProfile profile) {
+        this(transport, profile, System.nanoTime());
+    }
+
+    /**
+     * @param transport The transport carrying the bytes
+     * @param profile   Link parameters to emulate
+     * @param seed      Seed for jitter and stalls, for repeatable runs
+     */
+    public EmulatedLinkTransport(Transport transport, LinkProfile profile, long seed) {
+        mTransport = transport;
+        mProfile = profile;
+        mSeed = seed;
+    }
+
+    public LinkProfile getProfile() {
+        return mProfile;
+    }
+
+    @Override
+    public ServerEndpoint listen(String name) throws IOException {
+        final ServerEndpoint endpoint = mTransport.listen(name);
+        return new ServerEndpoint() {
+            @Override
+            public Connection accept() throws IOException {
+                return new EmulatedConnection(endpoint.accept());
+            }
+
+            @Override
+            public String getAddress() {
+                return endpoint.getAddress();
+            }
+
+            @Override
+            public void close() throws IOException {
+                endpoint.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        return new EmulatedConnection(mTransport.open(address));
+    }
+
+    private class EmulatedConnection implements Connection {
+        private final Connection mConnection;
+        private LinkOutputStream mOut;
+
+        EmulatedConnection(Connection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mConnection.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mConnection.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mOut == null) {
+                mOut = new LinkOutputStream(mConnection.getOutputStream(),
+                        mProfile, new Random(mSeed ^ System.identityHashCode(this)));
+            }
+            return mOut;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mConnection.getRemoteName();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mConnection.getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            LinkOutputStream out;
+            synchronized (this) {
+                out = mOut;
+            }
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } finally {
+                mConnection.close();
+            }
+        }
+    }
+
+    /**
+     * Shapes writes according to a {@link LinkProfile}. The writing thread pays
+     * for serialization time and stalls, a pump thread delivers fragments to the
+     * underlying stream once their latency has passed.
+     */
+    private static class LinkOutputStream extends OutputStream {
+        private static final Fragment END = new Fragment(null, 0);
+
+        // How long close() waits for fragments still in flight
+        private static final long DRAIN_TIMEOUT_MILLIS = 2000;
+
+        private final OutputStream mOut;
+        private final LinkProfile mProfile;
+        private final Random mRandom;
+        private final LinkedBlockingQueue<Fragment> mQueue = new LinkedBlockingQueue<>();
+        private final Thread mPump;
+
+        // Time the link finishes sending what was written so far
+        private long mLinkFreeAt;
+        // Delivery time of the last fragment, keeps fragments in order
+        private long mLastDeliveryAt;
+        private volatile IOException mError;
+        private volatile boolean mClosed;
+
+        LinkOutputStream(OutputStream out, LinkProfile profile, Random random) {
+            mOut = out;
+            mProfile = profile;
+            mRandom = random;
+            mPump = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    pump();
+                }
+            }, "LinkPump " + profile.getName());
+            mPump.setDaemon(true);
+            mPump.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mClosed) {
+                    throw new IOException("Link closed");
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+
+                int size = Math.min(len, mProfile.getMtu());
+                long now = System.nanoTime();
+                long sendAt = Math.max(now, mLinkFreeAt);
+                if (mProfile.getStallProbability() > 0
+                        && mRandom.nextDouble() < mProfile.getStallProbability()) {
+                    sendAt += TimeUnit.MILLISECONDS.toNanos(mProfile.getStallMillis());
+                }
+                mLinkFreeAt = sendAt + transmitNanos(size);
+
+                long deliveryAt = mLinkFreeAt
+                        + TimeUnit.MILLISECONDS.toNanos(mProfile.getLatencyMillis());
+                if (mProfile.getJitterMillis() > 0) {
+                    deliveryAt += (long) (mRandom.nextDouble()
+                            * TimeUnit.MILLISECONDS.toNanos(mProfile.getJitterMillis()));
+                }
+                mLastDeliveryAt = Math.max(mLastDeliveryAt, deliveryAt);
+                mQueue.add(new Fragment(Arrays.copyOfRange(b, off, off + size), mLastDeliveryAt));
+
+                // The writer is blocked until the fragment has left the radio
+                sleepUntil(mLinkFreeAt);
+
+                off += size;
+                len -= size;
+            }
+        }
+
+        private long transmitNanos(int bytes) {
+            if (mProfile.getBitsPerSecond() <= 0) {
+                return 0;
+            }
+            return bytes * 8L * TimeUnit.SECONDS.toNanos(1) / mProfile.getBitsPerSecond();
+        }
+
+        private void pump() {
+            try {
+                while (true) {
+                    Fragment fragment = mQueue.take();
+                    if (fragment == END) {
+                        break;
+                    }
+                    sleepUntil(fragment.mDeliveryAt);
+                    mOut.write(fragment.mData);
+                    mOut.flush();
+                }
+            } catch (InterruptedException | InterruptedIOException e) {
+                // Connection closed
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        private static void sleepUntil(long deadline) throws InterruptedIOException {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            // Let what is in flight arrive, like a socket with linger, then
+            // close the real stream
+            mClosed = true;
+            mQueue.add(END);
+            try {
+                mPump.join(DRAIN_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mPump.interrupt();
+            mOut.close();
+        }
+    }
+
+    private static class Fragment {
+        final byte[] mData;
+        final long mDeliveryAt;
+
+        Fragment(byte[] data, long deliveryAt) {
+            mData = data;
+            mDeliveryAt = deliveryAt;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.example.android.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Splits the byte stream of a {@link Connection} into whole messages. Stream
+ * transports do not preserve write boundaries, so every payload is sent behind
+ * a four byte big-endian length and read back in one piece.
+ * <p>
+ * Both directions are flow controlled with credits. Each side grants its peer
+ * a window of frames when the connection is set up, and one more credit for
+ * every frame it has released. A sender that runs out of credits blocks in
+ * {@link #send(byte[])} until the peer catches up, so a slow consumer bounds
+ * the memory used on both ends instead of queueing without limit. While no
+ * consumer is reading or waiting to, and it has taken every frame read ahead
+ * before, a blocked sender reads ahead itself to pick up the grant, keeping a
+ * data frame it finds for {@link #receive()}. A header with the top bit set
+ * carries a credit grant instead of a length.
+ */
+public class FramedConnection implements Closeable {
+
+    // Upper bound on a single payload, protects the reader from garbage lengths
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    // Frames the peer may send before the first one is released
+    public static final int DEFAULT_WINDOW = 8;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int CREDIT_FLAG = 0x80000000;
+
+    private final Connection mConnection;
+    private final DataInputStream mIn;
+    private final OutputStream mOut;
+    private final byte[] mHeader = new byte[4];
+    private final byte[] mHeaderIn = new byte[3];
+    private final WireStats mStats;
+    private final boolean mAutoRelease;
+    private final int mGrantThreshold;
+
+    // Held by whichever thread is reading, guards mIn and mPending
+    private final ReentrantLock mReadLock = new ReentrantLock();
+    private final ArrayDeque<byte[]> mPending = new ArrayDeque<>();
+
+    // Guarded by mCreditLock
+    private final Object mCreditLock = new Object();
+    private int mSendCredits;
+    private int mBlockedSenders;
+    private int mReadCount;
+    private boolean mClosed;
+
+    // Guarded by mOut
+    private int mUnreleased;
+    private int mPendingGrant;
+
+    /**
+     * Frame a connection with the default window, releasing every frame as
+     * soon as it is returned by {@link #receive()}.
+     */
+    public FramedConnection(Connection connection) throws IOException {
+        this(connection, DEFAULT_WINDOW, true);
+    }
+
+    /**
+     * @param window      Number of frames the peer may have outstanding
+     * @param autoRelease Whether {@link #receive()} releases each frame, if not
+     *                    the consumer has to call {@link #release()} once it is
+     *                    done with one
+     */
+    public FramedConnection(Connection connection, int window, boolean autoRelease)
+            throws IOException {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        mConnection = connection;
+        mIn = new DataInputStream(new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE));
+        mOut = new BufferedOutputStream(connection.getOutputStream(), BUFFER_SIZE);
+        // Only here the reads can be held against the frames they carry
+        mStats = connection instanceof CountingConnection
+                ? ((CountingConnection) connection).getStats() : null;
+        mAutoRelease = autoRelease;
+        // Hand credits back in batches, but never hold back a whole window
+        mGrantThreshold = Math.max(1, window / 2);
+
+        synchronized (mOut) {
+            writeHeader(CREDIT_FLAG | window);
+            mOut.flush();
+        }
+    }
+
+    public Connection getConnection() {
+        return mConnection;
+    }
+
+    public boolean isAutoRelease() {
+        return mAutoRelease;
+    }
+
+    /**
+     * Send one payload. Safe to call from several threads, frames are never
+     * interleaved. Blocks while the peer has no room for another frame.
+     *
+     * @param payload The bytes to send
+     */
+    public void send(byte[] payload) throws IOException {
+        acquireCredit();
+        synchronized (mOut) {
+            writeHeader(payload.length);
+            mOut.write(payload);
+            mOut.flush();
+        }
+    }
+
+    /**
+     * Wait for the next payload. Must only be called from one thread.
+     *
+     * @return The bytes of one payload, exactly as passed to {@link #send(byte[])}
+     */
+    public byte[] receive() throws IOException {
+        byte[] payload;
+        mReadLock.lock();
+        try {
+            payload = mPending.poll();
+            while (payload == null) {
+                payload = readFrame();
+            }
+        } finally {
+            mReadLock.unlock();
+            readDone();
+        }
+        if (mAutoRelease) {
+            try {
+                release();
+            } catch (IOException e) {
+                // The peer may close right after its last frame, which still counts
+                markClosed();
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Tell the peer that one received frame has been consumed, making room for
+     * another. Only needed without auto release, may be called from any thread.
+     */
+    public void release() throws IOException {
+        synchronized (mOut) {
+            if (mUnreleased == 0) {
+                throw new IllegalStateException("No frame to release");
+            }
+            mUnreleased--;
+            if (++mPendingGrant >= mGrantThreshold) {
+                writeHeader(CREDIT_FLAG | mPendingGrant);
+                mOut.flush();
+                mPendingGrant = 0;
+            }
+        }
+    }
+
+    /**
+     * @return Frames the peer currently allows this side to send
+     */
+    public int getSendCredits() {
+        synchronized (mCreditLock) {
+            return mSendCredits;
+        }
+    }
+
+    /**
+     * @return Number of threads waiting in {@link #send(byte[])} for credit
+     */
+    public int getSendQueueDepth() {
+        synchronized (mCreditLock) {
+            return mBlockedSenders;
+        }
+    }
+
+    /**
+     * @return Frames received but not yet released by the consumer, including
+     * those read ahead by a blocked sender
+     */
+    public int getReceiveQueueDepth() {
+        synchronized (mOut) {
+            return mUnreleased;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        markClosed();
+        mConnection.close();
+    }
+
+    private void writeHeader(int value) throws IOException {
+        mHeader[0] = (byte) (value >>> 24);
+        mHeader[1] = (byte) (value >>> 16);
+        mHeader[2] = (byte) (value >>> 8);
+        mHeader[3] = (byte) value;
+        mOut.write(mHeader);
+    }
+
+    /**
+     * Read one frame, must hold mReadLock.
+     *
+     * @return The payload of a data frame, null for a credit grant
+     */
+    private byte[] readFrame() throws IOException {
+        try {
+            int first = mIn.read();
+            if (first < 0) {
+                throw new EOFException();
+            }
+            // Any read from here on means the frame arrived in more than one piece
+            long reads = mStats == null ? 0 : mStats.getReadCount();
+            mIn.readFully(mHeaderIn);
+            int header = first << 24 | (mHeaderIn[0] & 0xFF) << 16
+                    | (mHeaderIn[1] & 0xFF) << 8 | (mHeaderIn[2] & 0xFF);
+            byte[] payload = null;
+            if ((header & CREDIT_FLAG) != 0) {
+                addCredits(header & ~CREDIT_FLAG);
+            } else {
+                if (header > MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + header);
+                }
+                payload = new byte[header];
+                mIn.readFully(payload);
+                synchronized (mOut) {
+                    mUnreleased++;
+                }
+            }
+            if (mStats != null && mStats.getReadCount() != reads) {
+                mStats.onFrameSplit();
+            }
+            return payload;
+        } catch (IOException e) {
+            // Nothing will grant credits anymore, let blocked senders fail
+            markClosed();
+            throw e;
+        }
+    }
+
+    private void acquireCredit() throws IOException {
+        synchronized (mCreditLock) {
+            mBlockedSenders++;
+        }
+        try {
+            while (true) {
+                int readCount;
+                synchronized (mCreditLock) {
+                    if (mClosed) {
+                        throw new IOException("Connection closed");
+                    }
+                    if (mSendCredits > 0) {
+                        mSendCredits--;
+                        return;
+                    }
+                    readCount = mReadCount;
+                }
+
+                boolean readAhead = false;
+                if (mReadLock.tryLock()) {
+                    try {
+                        // tryLock barges, so a consumer waiting for the lock or for
+                        // frames already read ahead goes first, else its releases,
+                        // and with them the peer's credit, never come
+                        if (mPending.isEmpty() && !mReadLock.hasQueuedThreads()) {
+                            readAhead = true;
+                            byte[] payload = readFrame();
+                            if (payload != null) {
+                                mPending.add(payload);
+                            }
+                        }
+                    } finally {
+                        mReadLock.unlock();
+                        if (readAhead) {
+                            readDone();
+                        }
+                    }
+                }
+                if (!readAhead) {
+                    synchronized (mCreditLock) {
+                        // Wait for the reader to bring credit or finish a read
+                        while (mSendCredits == 0 && !mClosed && mReadCount == readCount) {
+                            mCreditLock.wait();
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for credit");
+        } finally {
+            synchronized (mCreditLock) {
+                mBlockedSenders--;
+            }
+        }
+    }
+
+    private void readDone() {
+        synchronized (mCreditLock) {
+            mReadCount++;
+            mCreditLock.notifyAll();
+        }
+    }
+
+    private void addCredits(int credits) {
+        synchronized (mCreditLock) {
+            mSendCredits += credits;
+            mCreditLock.notifyAll();
+        }
+    }
+
+    private void markClosed() {
+        synchronized (mCreditLock) {
+            mClosed = true;
+            mCreditLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.android.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A {@link Transport} connecting endpoints inside the same process through
+ * in-memory pipes. Addresses are the names passed to {@link #listen(String)}.
+ */
+public class InMemoryTransport implements Transport {
+
+    // Default size of the buffer backing each direction of a connection
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    private final ConcurrentHashMap<String, Endpoint> mEndpoints = new ConcurrentHashMap<>();
+    private final int mPipeCapacity;
+
+    public InMemoryTransport() {
+        this(DEFAULT_PIPE_CAPACITY);
+    }
+
+    /**
+     * @param pipeCapacity Number of bytes a writer can get ahead of the reader
+     *                     before blocking
+     */
+    public InMemoryTransport(int pipeCapacity) {
+        mPipeCapacity = pipeCapacity;
+    }
+
+    @Override
+    public ServerEndpoint listen(String name) throws IOException {
+        Endpoint endpoint = new Endpoint(name);
+        if (mEndpoints.putIfAbsent(name, endpoint) != null) {
+            throw new IOException("Already listening on " + name);
+        }
+        return endpoint;
+    }
+
+    @Override
+    public Connection open(String address) {
+        return new PipeConnection(address, null, null);
+    }
+
+    private class Endpoint implements ServerEndpoint {
+        private final String mName;
+        private final LinkedBlockingQueue<PipeConnection> mPending = new LinkedBlockingQueue<>();
+        private volatile boolean mClosed;
+
+        Endpoint(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            PipeConnection connection;
+            try {
+                connection = mPending.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("accept() interrupted");
+            }
+            if (mClosed) {
+                throw new IOException("Endpoint " + mName + " closed");
+            }
+            return connection;
+        }
+
+        @Override
+        public String getAddress() {
+            return mName;
+        }
+
+        void enqueue(PipeConnection connection) throws IOException {
+            if (mClosed) {
+                throw new ConnectException("Endpoint " + mName + " closed");
+            }
+            mPending.add(connection);
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            mEndpoints.remove(mName, this);
+            // Wake up a blocked accept()
+            mPending.add(new PipeConnection(mName, null, null));
+        }
+    }
+
+    private class PipeConnection implements Connection {
+        private final String mRemoteAddress;
+        private Pipe mIn;
+        private Pipe mOut;
+        private boolean mClosed;
+
+        PipeConnection(String remoteAddress, Pipe in, Pipe out) {
+            mRemoteAddress = remoteAddress;
+            mIn = in;
+            mOut = out;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            Pipe in;
+            Pipe out;
+            synchronized (this) {
+                if (mClosed) {
+                    throw new IOException("Connection closed");
+                }
+                if (mIn != null) {
+                    return;
+                }
+                in = new Pipe(mPipeCapacity);
+                out = new Pipe(mPipeCapacity);
+                mIn = in;
+                mOut = out;
+            }
+
+            Endpoint endpoint = mEndpoints.get(mRemoteAddress);
+            if (endpoint == null) {
+                close();
+                throw new ConnectException("Nobody is listening on " + mRemoteAddress);
+            }
+            // The remote end reads what we write and the other way around
+            endpoint.enqueue(new PipeConnection("client:" + mRemoteAddress, out, in));
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mIn == null) {
+                throw new IOException("Not connected");
+            }
+            return mIn.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mOut == null) {
+                throw new IOException("Not connected");
+            }
+            return mOut.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            if (mIn != null) {
+                mIn.close();
+            }
+            if (mOut != null) {
+                mOut.close();
+            }
+        }
+    }
+
+    /**
+     * A bounded single-producer single-consumer byte buffer. Writers block while
+     * it is full, readers block while it is empty, and closing it from either
+     * side wakes up both.
+     */
+    static class Pipe {
+        private final byte[] mBuffer;
+        private int mReadPos;
+        private int mCount;
+        private boolean mClosed;
+
+        private final InputStream mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        private final OutputStream mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        InputStream getInputStream() {
+            return mInputStream;
+        }
+
+        OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mCount == 0) {
+                if (mClosed) {
+                    return -1;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("read() interrupted");
+                }
+            }
+
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mReadPos);
+            System.arraycopy(mBuffer, mReadPos, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mReadPos = (mReadPos + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (mCount == mBuffer.length && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("write() interrupted");
+                    }
+                }
+                if (mClosed) {
+                    throw new IOException("Pipe closed");
+                }
+
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+                System.arraycopy(b, off, mBuffer, writePos, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.example.android.transport;
+
+/**
+ * Estimates the quality of one connection while it is in use. Round trip time
+ * is measured actively with ping and pong probes carrying a
+ * {@link System#nanoTime()} stamp, smoothed the way TCP does (RFC 6298).
+ * Throughput is measured passively from the bytes the connection already
+ * carries in each direction, averaged between two probes.
+ * <p>
+ * The monitor does no I/O itself. The owner sends what {@link #newPing()}
+ * returns on a regular basis, feeds every probe it receives to
+ * {@link #onProbe(byte[])} and reports traffic with {@link #onSent(int)} and
+ * {@link #onReceived(int)}.
+ */
+public class LinkMonitor {
+
+    /**
+     * Notified after every round trip sample, on the thread that handled the
+     * pong.
+     */
+    public interface Listener {
+        /**
+         * @param monitor The monitor of the connection, read its estimates
+         */
+        void onLinkEstimate(LinkMonitor monitor);
+    }
+
+    public static final byte TYPE_PING = 0;
+    public static final byte TYPE_PONG = 1;
+    public static final int PROBE_LENGTH = 9;
+
+    // Gains of the smoothed estimates, as in RFC 6298
+    private static final double RTT_GAIN = 1.0 / 8;
+    private static final double VARIANCE_GAIN = 1.0 / 4;
+    private static final double RATE_GAIN = 1.0 / 4;
+
+    private final Listener mListener;
+
+    // Guarded by this
+    private long mBytesSent;
+    private long mBytesReceived;
+    private long mLastRtt;
+    private double mSmoothedRtt;
+    private double mRttVariance;
+    private int mSamples;
+    private long mWindowStart = System.nanoTime();
+    private long mWindowSent;
+    private long mWindowReceived;
+    private double mSendRate;
+    private double mReceiveRate;
+
+    public LinkMonitor(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return A ping probe stamped with the current time
+     */
+    public byte[] newPing() {
+        return probe(TYPE_PING, System.nanoTime());
+    }
+
+    /**
+     * Handle a probe received from the peer.
+     *
+     * @param probe The probe payload
+     * @return The pong to send back for a ping, null for a pong
+     */
+    public byte[] onProbe(byte[] probe) {
+        if (probe.length != PROBE_LENGTH) {
+            throw new IllegalArgumentException("Invalid probe length " + probe.length);
+        }
+        long stamp = 0;
+        for (int i = 1; i < PROBE_LENGTH; i++) {
+            stamp = (stamp << 8) | (probe[i] & 0xFF);
+        }
+        if (probe[0] == TYPE_PING) {
+            // The stamp only means something to the side that sent it
+            return probe(TYPE_PONG, stamp);
+        }
+
+        long now = System.nanoTime();
+        synchronized (this) {
+            addRttSample(now - stamp);
+            updateRates(now);
+        }
+        if (mListener != null) {
+            mListener.onLinkEstimate(this);
+        }
+        return null;
+    }
+
+    public synchronized void onSent(int bytes) {
+        mBytesSent += bytes;
+    }
+
+    public synchronized void onReceived(int bytes) {
+        mBytesReceived += bytes;
+    }
+
+    /**
+     * @return The most recent round trip time in nanoseconds, 0 before the first
+     */
+    public synchronized long getRttNanos() {
+        return mLastRtt;
+    }
+
+    /**
+     * @return The smoothed round trip time in nanoseconds
+     */
+    public synchronized long getSmoothedRttNanos() {
+        return (long) mSmoothedRtt;
+    }
+
+    /**
+     * @return The mean deviation of the round trip time in nanoseconds
+     */
+    public synchronized long getRttVarianceNanos() {
+        return (long) mRttVariance;
+    }
+
+    /**
+     * @return Bytes per second sent lately
+     */
+    public synchronized double getSendRate() {
+        return mSendRate;
+    }
+
+    /**
+     * @return Bytes per second received lately
+     */
+    public synchronized double getReceiveRate() {
+        return mReceiveRate;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    private void addRttSample(long rtt) {
+        mLastRtt = rtt;
+        if (mSamples++ == 0) {
+            mSmoothedRtt = rtt;
+            mRttVariance = rtt / 2.0;
+        } else {
+            mRttVariance += VARIANCE_GAIN * (Math.abs(mSmoothedRtt - rtt) - mRttVariance);
+            mSmoothedRtt += RTT_GAIN * (rtt - mSmoothedRtt);
+        }
+    }
+
+    private void updateRates(long now) {
+        double seconds = (now - mWindowStart) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        double sendRate = (mBytesSent - mWindowSent) / seconds;
+        double receiveRate = (mBytesReceived - mWindowReceived) / seconds;
+        if (mSamples == 1) {
+            mSendRate = sendRate;
+            mReceiveRate = receiveRate;
+        } else {
+            mSendRate += RATE_GAIN * (sendRate - mSendRate);
+            mReceiveRate += RATE_GAIN * (receiveRate - mReceiveRate);
+        }
+        mWindowStart = now;
+        mWindowSent = mBytesSent;
+        mWindowReceived = mBytesReceived;
+    }
+
+    private static byte[] probe(byte type, long stamp) {
+        byte[] probe = new byte[PROBE_LENGTH];
+        probe[0] = type;
+        for (int i = PROBE_LENGTH - 1; i > 0; i--) {
+            probe[i] = (byte) stamp;
+            stamp >>>= 8;
+        }
+        return probe;
+    }
+}
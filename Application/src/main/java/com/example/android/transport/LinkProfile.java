@@ -0,0 +1,99 @@
+package com.example.android.transport;
+
+/**
+ * Parameters of an emulated link, see {@link EmulatedLinkTransport}.
+ */
+public class LinkProfile {
+
+    /**
+     * No limits at all, for comparison with the other profiles.
+     */
+    public static final LinkProfile UNLIMITED =
+            new LinkProfile("unlimited", 0, 0, 0, Integer.MAX_VALUE, 0, 0);
+
+    /**
+     * A clean EDR link between two phones a few meters apart.
+     */
+    public static final LinkProfile RFCOMM_GOOD =
+            new LinkProfile("rfcomm-good", 1400 * 1000, 8, 2, 990, 0, 0);
+
+    /**
+     * What RFCOMM usually gives on a phone that also has Wi-Fi and other
+     * Bluetooth traffic going on.
+     */
+    public static final LinkProfile RFCOMM_TYPICAL =
+            new LinkProfile("rfcomm-typical", 700 * 1000, 20, 10, 990, 0.01, 50);
+
+    /**
+     * A basic rate link with the default RFCOMM frame size, at the edge of range
+     * and sharing the air with other devices.
+     */
+    public static final LinkProfile RFCOMM_CONGESTED =
+            new LinkProfile("rfcomm-congested", 200 * 1000, 40, 25, 127, 0.05, 200);
+
+    public static final LinkProfile[] PRESETS = {
+            UNLIMITED, RFCOMM_GOOD, RFCOMM_TYPICAL, RFCOMM_CONGESTED
+    };
+
+    private final String mName;
+    private final long mBitsPerSecond;
+    private final long mLatencyMillis;
+    private final long mJitterMillis;
+    private final int mMtu;
+    private final double mStallProbability;
+    private final long mStallMillis;
+
+    /**
+     * @param name             Name of the profile, for reports
+     * @param bitsPerSecond    Link bandwidth, 0 for unlimited
+     * @param latencyMillis    One-way latency of every fragment
+     * @param jitterMillis     Upper bound of the random delay added to the latency
+     * @param mtu              Largest fragment a single write is split into
+     * @param stallProbability Chance that a fragment stalls the writer
+     * @param stallMillis      How long a stall blocks the link
+     */
+    public LinkProfile(String name, long bitsPerSecond, long latencyMillis, long jitterMillis,
+                       int mtu, double stallProbability, long stallMillis) {
+        mName = name;
+        mBitsPerSecond = bitsPerSecond;
+        mLatencyMillis = latencyMillis;
+        mJitterMillis = jitterMillis;
+        mMtu = mtu;
+        mStallProbability = stallProbability;
+        mStallMillis = stallMillis;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getBitsPerSecond() {
+        return mBitsPerSecond;
+    }
+
+    public long getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    public long getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public double getStallProbability() {
+        return mStallProbability;
+    }
+
+    public long getStallMillis() {
+        return mStallMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + mBitsPerSecond / 1000 + " kbit/s, " + mLatencyMillis + "+-"
+                + mJitterMillis + " ms, mtu " + mMtu + ")";
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.android.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Carries several logical channels over one {@link FramedConnection}. Each
+ * payload is cut into fragments of at most {@link #FRAGMENT_SIZE} bytes, tagged
+ * with its channel id, and queued per channel. Whichever thread is sending
+ * writes the queued fragments, always taking the one with the most urgent
+ * priority next, so a protocol round can overtake a long chat message that is
+ * already half way out. Channels of equal priority take turns.
+ * <p>
+ * Fragments of one channel arrive in order and are put back together before
+ * {@link #receive()} returns them. Every fragment is one frame of the
+ * underlying connection. When that connection does not release frames
+ * automatically, the fragments before the last one are released as soon as
+ * they are buffered. The last one is released by {@link #release()}.
+ */
+public class Multiplexer implements Closeable {
+
+    // Lower values go out first
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+
+    public static final int MAX_CHANNELS = 256;
+
+    // Small enough that an urgent frame waits little for the one on the wire
+    public static final int FRAGMENT_SIZE = 512;
+
+    // Fragments a channel may have waiting before its senders block
+    private static final int MAX_QUEUED = 32;
+
+    private static final int HEADER_LENGTH = 2;
+    private static final int FLAG_LAST = 1;
+
+    private final FramedConnection mFrames;
+
+    // Guarded by mLock
+    private final Object mLock = new Object();
+    private final Channel[] mChannels = new Channel[MAX_CHANNELS];
+    private final ArrayList<Channel> mActive = new ArrayList<>();
+    private int mNext;
+    private boolean mWriting;
+    private boolean mClosed;
+
+    // Only touched by the reading thread
+    private final ByteArrayOutputStream[] mPartial = new ByteArrayOutputStream[MAX_CHANNELS];
+
+    public Multiplexer(FramedConnection frames) {
+        mFrames = frames;
+    }
+
+    /**
+     * Change how urgent a channel is, the default is {@link #PRIORITY_NORMAL}.
+     */
+    public void setPriority(int channel, int priority) {
+        synchronized (mLock) {
+            channel(channel).mPriority = priority;
+        }
+    }
+
+    /**
+     * Send one payload on a channel. Returns once all of it is queued, which
+     * may be before it has been written by another sending thread. Payloads on
+     * the same channel are never interleaved.
+     *
+     * @param channel Channel id, 0 to {@link #MAX_CHANNELS} - 1
+     * @param payload The bytes to send
+     */
+    public void send(int channel, byte[] payload) throws IOException {
+        Channel queue;
+        synchronized (mLock) {
+            queue = channel(channel);
+        }
+
+        synchronized (queue) {
+            int offset = 0;
+            do {
+                int length = Math.min(FRAGMENT_SIZE, payload.length - offset);
+                byte[] fragment = new byte[HEADER_LENGTH + length];
+                fragment[0] = (byte) channel;
+                fragment[1] = (byte) (offset + length == payload.length ? FLAG_LAST : 0);
+                System.arraycopy(payload, offset, fragment, HEADER_LENGTH, length);
+                offset += length;
+
+                synchronized (mLock) {
+                    try {
+                        // A full queue only drains while somebody is writing
+                        while (queue.mFragments.size() >= MAX_QUEUED && mWriting && !mClosed) {
+                            mLock.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for queue space");
+                    }
+                    if (mClosed) {
+                        throw new IOException("Multiplexer closed");
+                    }
+                    queue.mFragments.add(fragment);
+                }
+                drain();
+            } while (offset < payload.length);
+        }
+    }
+
+    /**
+     * Wait for the next whole payload on any channel. Must only be called from
+     * one thread.
+     */
+    public Packet receive() throws IOException {
+        while (true) {
+            byte[] fragment = mFrames.receive();
+            if (fragment.length < HEADER_LENGTH) {
+                throw new IOException("Invalid fragment length " + fragment.length);
+            }
+            int channel = fragment[0] & 0xFF;
+            boolean last = (fragment[1] & FLAG_LAST) != 0;
+
+            ByteArrayOutputStream partial = mPartial[channel];
+            if (last && partial == null) {
+                // Fits in one fragment, the common case for protocol messages
+                byte[] payload = new byte[fragment.length - HEADER_LENGTH];
+                System.arraycopy(fragment, HEADER_LENGTH, payload, 0, payload.length);
+                return new Packet(channel, payload);
+            }
+
+            if (partial == null) {
+                partial = new ByteArrayOutputStream();
+                mPartial[channel] = partial;
+            }
+            partial.write(fragment, HEADER_LENGTH, fragment.length - HEADER_LENGTH);
+            if (partial.size() > FramedConnection.MAX_FRAME_LENGTH) {
+                throw new IOException("Payload on channel " + channel + " too long");
+            }
+            if (last) {
+                mPartial[channel] = null;
+                return new Packet(channel, partial.toByteArray());
+            }
+            if (!mFrames.isAutoRelease()) {
+                // Buffered here, the consumer only ever sees the last fragment
+                mFrames.release();
+            }
+        }
+    }
+
+    /**
+     * Release the payload last returned by {@link #receive()}, see
+     * {@link FramedConnection#release()}.
+     */
+    public void release() throws IOException {
+        mFrames.release();
+    }
+
+    /**
+     * @return Fragments of a channel waiting to be written
+     */
+    public int getQueuedFragments(int channel) {
+        synchronized (mLock) {
+            Channel queue = mChannels[channel];
+            return queue == null ? 0 : queue.mFragments.size();
+        }
+    }
+
+    public FramedConnection getFrames() {
+        return mFrames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        mFrames.close();
+    }
+
+    /**
+     * Write queued fragments until none are left, unless another thread is
+     * already doing so.
+     */
+    private void drain() throws IOException {
+        byte[] fragment;
+        synchronized (mLock) {
+            if (mWriting) {
+                return;
+            }
+            fragment = next();
+            if (fragment == null) {
+                return;
+            }
+            mWriting = true;
+        }
+
+        try {
+            while (fragment != null) {
+                mFrames.send(fragment);
+                synchronized (mLock) {
+                    fragment = next();
+                    if (fragment == null) {
+                        mWriting = false;
+                    }
+                    mLock.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (mLock) {
+                mWriting = false;
+                mClosed = true;
+                mLock.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Take the next fragment to write, must hold mLock.
+     */
+    private byte[] next() {
+        Channel best = null;
+        int bestIndex = 0;
+        int count = mActive.size();
+        // Start after the channel served last, so equal priorities alternate
+        for (int i = 0; i < count; i++) {
+            int index = (mNext + i) % count;
+            Channel channel = mActive.get(index);
+            if (!channel.mFragments.isEmpty()
+                    && (best == null || channel.mPriority < best.mPriority)) {
+                best = channel;
+                bestIndex = index;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        mNext = bestIndex + 1;
+        return best.mFragments.poll();
+    }
+
+    /**
+     * Look up a channel, creating it on first use. Must hold mLock.
+     */
+    private Channel channel(int id) {
+        if (id < 0 || id >= MAX_CHANNELS) {
+            throw new IllegalArgumentException("Invalid channel " + id);
+        }
+        Channel channel = mChannels[id];
+        if (channel == null) {
+            channel = new Channel();
+            mChannels[id] = channel;
+            mActive.add(channel);
+        }
+        return channel;
+    }
+
+    private static class Channel {
+        final ArrayDeque<byte[]> mFragments = new ArrayDeque<>();
+        int mPriority = PRIORITY_NORMAL;
+    }
+
+    /**
+     * One reassembled payload and the channel it came in on.
+     */
+    public static final class Packet {
+        private final int mChannel;
+        private final byte[] mPayload;
+
+        Packet(int channel, byte[] payload) {
+            mChannel = channel;
+            mPayload = payload;
+        }
+
+        public int getChannel() {
+            return mChannel;
+        }
+
+        public byte[] getPayload() {
+            return mPayload;
+        }
+    }
+}
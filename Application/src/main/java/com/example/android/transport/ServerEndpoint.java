@@ -0,0 +1,22 @@
+package com.example.android.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The listening side of a {@link Transport}.
+ */
+public interface ServerEndpoint extends Closeable {
+
+    /**
+     * Wait for the next incoming connection. This is a blocking call and will
+     * only return on a successful connection or an exception, for example
+     * because the endpoint was closed from another thread.
+     */
+    Connection accept() throws IOException;
+
+    /**
+     * Return the address clients should pass to {@link Transport#open(String)}.
+     */
+    String getAddress();
+}
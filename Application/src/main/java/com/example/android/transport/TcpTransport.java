@@ -0,0 +1,120 @@
+package com.example.android.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A {@link Transport} over TCP sockets. By default it listens on an ephemeral
+ * loopback port, which makes it useful for running both ends of the protocol
+ * on one machine. Addresses have the form {@code host:port}.
+ */
+public class TcpTransport implements Transport {
+
+    private final InetAddress mBindAddress;
+    private final int mPort;
+
+    public TcpTransport() {
+        this(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    /**
+     * @param bindAddress Local address server endpoints bind to
+     * @param port        Local port server endpoints bind to, 0 for any free port
+     */
+    public TcpTransport(InetAddress bindAddress, int port) {
+        mBindAddress = bindAddress;
+        mPort = port;
+    }
+
+    @Override
+    public ServerEndpoint listen(String name) throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(mPort, 50, mBindAddress);
+        return new ServerEndpoint() {
+            @Override
+            public Connection accept() throws IOException {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                return new SocketConnection(socket, null);
+            }
+
+            @Override
+            public String getAddress() {
+                return serverSocket.getInetAddress().getHostAddress() + ":"
+                        + serverSocket.getLocalPort();
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IOException("Address " + address + " is not host:port");
+        }
+        InetSocketAddress remote;
+        try {
+            remote = new InetSocketAddress(address.substring(0, separator),
+                    Integer.parseInt(address.substring(separator + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Address " + address + " is not host:port", e);
+        }
+        return new SocketConnection(new Socket(), remote);
+    }
+
+    private static class SocketConnection implements Connection {
+        private final Socket mSocket;
+        private final InetSocketAddress mRemote;
+
+        SocketConnection(Socket socket, InetSocketAddress remote) {
+            mSocket = socket;
+            mRemote = remote;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mSocket.isConnected()) {
+                return;
+            }
+            mSocket.setTcpNoDelay(true);
+            mSocket.connect(mRemote);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            if (mRemote != null) {
+                return mRemote.getHostString() + ":" + mRemote.getPort();
+            }
+            return mSocket.getInetAddress().getHostAddress() + ":" + mSocket.getPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
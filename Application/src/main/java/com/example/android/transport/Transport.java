@@ -0,0 +1,29 @@
+package com.example.android.transport;
+
+import java.io.IOException;
+
+/**
+ * A way for two devices to find each other and exchange bytes. The connection
+ * lifecycle mirrors the Bluetooth socket API: a server side listens and accepts,
+ * a client side opens a connection and then connects it, and both ends end up
+ * with a {@link Connection} carrying the two streams.
+ */
+public interface Transport {
+
+    /**
+     * Start listening for incoming connections.
+     *
+     * @param name Service name the endpoint is advertised under
+     * @return An endpoint to accept connections from
+     */
+    ServerEndpoint listen(String name) throws IOException;
+
+    /**
+     * Create an outgoing connection to a remote endpoint. The connection is not
+     * established until {@link Connection#connect()} is called, so that a
+     * pending attempt can be aborted by closing it.
+     *
+     * @param address Address of the remote endpoint, as understood by this transport
+     */
+    Connection open(String address) throws IOException;
+}
@@ -0,0 +1,265 @@
+package com.example.android.transport;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what goes over one connection, both as raw bytes on the stream, see
+ * {@link CountingConnection}, and as the messages the application exchanges.
+ * The difference is what framing, multiplexing and credit grants cost. Every
+ * counter is updated atomically, so any thread may take a {@link #snapshot()}.
+ */
+public class WireStats {
+
+    // Message types are the first payload byte, 0 to 255, plus one for link probes
+    public static final int TYPE_PROBE = 256;
+    public static final int TYPES = 257;
+
+    // Read sizes are counted in power-of-two buckets: bucket i holds [2^i, 2^(i+1))
+    public static final int READ_SIZE_BUCKETS = 17;
+
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mReads = new AtomicLong();
+    private final AtomicLong mSplitFrames = new AtomicLong();
+    private final AtomicLongArray mReadSizes = new AtomicLongArray(READ_SIZE_BUCKETS);
+    private final AtomicLong mWrites = new AtomicLong();
+    private final AtomicLong mWriteNanos = new AtomicLong();
+
+    private final AtomicLongArray mMessagesIn = new AtomicLongArray(TYPES);
+    private final AtomicLongArray mMessagesOut = new AtomicLongArray(TYPES);
+    private final AtomicLong mPayloadIn = new AtomicLong();
+    private final AtomicLong mPayloadOut = new AtomicLong();
+    private final AtomicLong mSendStallNanos = new AtomicLong();
+
+    /**
+     * One read call on the stream returned.
+     *
+     * @param read Bytes returned, negative at the end of the stream
+     */
+    public void onRead(int read) {
+        if (read < 0) {
+            return;
+        }
+        mReads.incrementAndGet();
+        mBytesIn.addAndGet(read);
+        mReadSizes.incrementAndGet(Math.min(31 - Integer.numberOfLeadingZeros(read | 1),
+                READ_SIZE_BUCKETS - 1));
+    }
+
+    /**
+     * A frame did not arrive in one piece, reading its header and payload took
+     * more than one read call on the stream. Counted by {@link FramedConnection},
+     * as reads below its buffer are short whenever the buffer is not full.
+     */
+    public void onFrameSplit() {
+        mSplitFrames.incrementAndGet();
+    }
+
+    long getReadCount() {
+        return mReads.get();
+    }
+
+    /**
+     * One write call on the stream, or a flush of it, returned.
+     *
+     * @param bytes Bytes written, 0 for a flush
+     * @param nanos How long the call blocked
+     */
+    public void onWrite(int bytes, long nanos) {
+        mWrites.incrementAndGet();
+        mBytesOut.addAndGet(bytes);
+        mWriteNanos.addAndGet(nanos);
+    }
+
+    /**
+     * A whole message arrived.
+     *
+     * @param type Its first byte, {@link #TYPE_PROBE}, or negative if it has none
+     */
+    public void onMessageReceived(int type, int length) {
+        if (type >= 0) {
+            mMessagesIn.incrementAndGet(type);
+        }
+        mPayloadIn.addAndGet(length);
+    }
+
+    /**
+     * A whole message was sent.
+     *
+     * @param type       Its first byte, {@link #TYPE_PROBE}, or negative if it has none
+     * @param stallNanos How long the sender waited for it to be taken, for
+     *                   credit or for the stream
+     */
+    public void onMessageSent(int type, int length, long stallNanos) {
+        if (type >= 0) {
+            mMessagesOut.incrementAndGet(type);
+        }
+        mPayloadOut.addAndGet(length);
+        mSendStallNanos.addAndGet(stallNanos);
+    }
+
+    /**
+     * @return The first byte of a payload as a message type, -1 if it is empty
+     */
+    public static int typeOf(byte[] payload) {
+        return payload.length == 0 ? -1 : payload[0] & 0xFF;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * The counters of a {@link WireStats} at one point in time.
+     */
+    public static class Snapshot {
+        private final long mBytesIn;
+        private final long mBytesOut;
+        private final long mReads;
+        private final long mSplitFrames;
+        private final long[] mReadSizes = new long[READ_SIZE_BUCKETS];
+        private final long mWrites;
+        private final long mWriteNanos;
+        private final long[] mMessagesIn = new long[TYPES];
+        private final long[] mMessagesOut = new long[TYPES];
+        private final long mPayloadIn;
+        private final long mPayloadOut;
+        private final long mSendStallNanos;
+
+        Snapshot(WireStats stats) {
+            mBytesIn = stats.mBytesIn.get();
+            mBytesOut = stats.mBytesOut.get();
+            mReads = stats.mReads.get();
+            mSplitFrames = stats.mSplitFrames.get();
+            for (int i = 0; i < READ_SIZE_BUCKETS; i++) {
+                mReadSizes[i] = stats.mReadSizes.get(i);
+            }
+            mWrites = stats.mWrites.get();
+            mWriteNanos = stats.mWriteNanos.get();
+            for (int i = 0; i < TYPES; i++) {
+                mMessagesIn[i] = stats.mMessagesIn.get(i);
+                mMessagesOut[i] = stats.mMessagesOut.get(i);
+            }
+            mPayloadIn = stats.mPayloadIn.get();
+            mPayloadOut = stats.mPayloadOut.get();
+            mSendStallNanos = stats.mSendStallNanos.get();
+        }
+
+        /**
+         * @return Bytes read from the stream
+         */
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        /**
+         * @return Bytes written to the stream
+         */
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        public long getReads() {
+            return mReads;
+        }
+
+        /**
+         * @return Frames that took more than one read to arrive
+         */
+        public long getSplitFrames() {
+            return mSplitFrames;
+        }
+
+        /**
+         * @return Reads that returned [2^i, 2^(i+1)) bytes, the last bucket open ended
+         */
+        public long getReadSizes(int bucket) {
+            return mReadSizes[bucket];
+        }
+
+        /**
+         * @return Write and flush calls on the stream
+         */
+        public long getWrites() {
+            return mWrites;
+        }
+
+        /**
+         * @return Time spent blocked in write and flush calls on the stream
+         */
+        public long getWriteNanos() {
+            return mWriteNanos;
+        }
+
+        public long getMessagesIn(int type) {
+            return mMessagesIn[type];
+        }
+
+        public long getMessagesOut(int type) {
+            return mMessagesOut[type];
+        }
+
+        public long getPayloadIn() {
+            return mPayloadIn;
+        }
+
+        public long getPayloadOut() {
+            return mPayloadOut;
+        }
+
+        /**
+         * @return Time senders of messages waited until they were taken
+         */
+        public long getSendStallNanos() {
+            return mSendStallNanos;
+        }
+
+        /**
+         * @return Bytes on the stream that were not message payload
+         */
+        public long getOverhead() {
+            return mBytesIn + mBytesOut - mPayloadIn - mPayloadOut;
+        }
+
+        /**
+         * @return Messages received per read call, below 1 when messages need several reads
+         */
+        public double getMessagesPerRead() {
+            long messages = 0;
+            for (long count : mMessagesIn) {
+                messages += count;
+            }
+            return mReads == 0 ? 0 : (double) messages / mReads;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format(Locale.US,
+                    "in %d B (%d payload), out %d B (%d payload), overhead %d B%n",
+                    mBytesIn, mPayloadIn, mBytesOut, mPayloadOut, getOverhead()));
+            text.append(String.format(Locale.US,
+                    "reads %d, split frames %d, %.2f messages/read%n",
+                    mReads, mSplitFrames, getMessagesPerRead()));
+            text.append("read sizes:");
+            for (int i = 0; i < READ_SIZE_BUCKETS; i++) {
+                if (mReadSizes[i] != 0) {
+                    text.append(' ').append(1 << i).append("+=").append(mReadSizes[i]);
+                }
+            }
+            text.append(String.format(Locale.US,
+                    "%nwrites %d, blocked %.3f ms, senders stalled %.3f ms%n",
+                    mWrites, mWriteNanos / 1e6, mSendStallNanos / 1e6));
+            text.append("messages in/out by type:");
+            for (int i = 0; i < TYPES; i++) {
+                if (mMessagesIn[i] != 0 || mMessagesOut[i] != 0) {
+                    text.append(' ').append(i == TYPE_PROBE ? "probe" : Integer.toString(i))
+                            .append('=').append(mMessagesIn[i]).append('/').append(mMessagesOut[i]);
+                }
+            }
+            return text.toString();
+        }
+    }
+}
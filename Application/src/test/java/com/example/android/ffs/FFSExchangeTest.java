@@ -0,0 +1,105 @@
+package com.example.android.ffs;
+
+import com.example.android.transport.Connection;
+import com.example.android.transport.EmulatedLinkTransport;
+import com.example.android.transport.FramedConnection;
+import com.example.android.transport.InMemoryTransport;
+import com.example.android.transport.LinkProfile;
+import com.example.android.transport.ServerEndpoint;
+import com.example.android.transport.TcpTransport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs whole identifications through {@link FFSExchange}, over the raw
+ * transports and behind every {@link LinkProfile} preset. A failed
+ * identification makes {@link FFSExchange#run} throw.
+ */
+public class FFSExchangeTest {
+
+    // Small keys, the links are what is being tested
+    private static final int L = 64;
+    private static final int K = 8;
+    private static final int ROUNDS = 10;
+
+    @Test(timeout = 30000)
+    public void inMemory() throws IOException {
+        assertTrue(FFSExchange.run(new InMemoryTransport(), L, K, ROUNDS) > 0);
+    }
+
+    @Test(timeout = 30000)
+    public void tcp() throws IOException {
+        assertTrue(FFSExchange.run(new TcpTransport(), L, K, ROUNDS) > 0);
+    }
+
+    @Test(timeout = 120000)
+    public void everyLinkProfile() throws IOException {
+        for (LinkProfile profile : LinkProfile.PRESETS) {
+            assertTrue(profile.getName(), FFSExchange.run(
+                    new EmulatedLinkTransport(new InMemoryTransport(), profile, 1), L, K, ROUNDS) > 0);
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void everyLinkProfileWithCommitments() throws IOException {
+        for (LinkProfile profile : LinkProfile.PRESETS) {
+            assertTrue(profile.getName(), FFSExchange.run(
+                    new EmulatedLinkTransport(new InMemoryTransport(), profile, 2), L, K, ROUNDS,
+                    true) > 0);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentProvers() throws IOException {
+        assertTrue(FFSExchange.runConcurrent(new InMemoryTransport(), L, K, ROUNDS, 8, 8) > 0);
+    }
+
+    @Test(timeout = 120000)
+    public void multiTarget() throws IOException {
+        EmulatedLinkTransport[] links = new EmulatedLinkTransport[LinkProfile.PRESETS.length];
+        for (int i = 0; i < links.length; i++) {
+            links[i] = new EmulatedLinkTransport(new InMemoryTransport(), LinkProfile.PRESETS[i], i);
+        }
+        assertTrue(FFSExchange.runMultiTarget(links, L, K, ROUNDS) > 0);
+    }
+
+    @Test(timeout = 30000, expected = IOException.class)
+    public void shortChallenge() throws IOException {
+        InMemoryTransport transport = new InMemoryTransport();
+        final ServerEndpoint endpoint = transport.listen("FFSExchangeTest");
+        // A verifier that challenges only one of the k secrets
+        Thread verifier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (FramedConnection connection = new FramedConnection(endpoint.accept())) {
+                    connection.receive();
+                    connection.receive();
+                    connection.send(FFSCodec.toBooleanMessage(
+                            new ArrayList<>(Collections.singletonList(true))));
+                    connection.receive();
+                } catch (IOException e) {
+                    // The prover gave up, as it should
+                }
+            }
+        });
+        verifier.start();
+        try {
+            Connection client = transport.open(endpoint.getAddress());
+            client.connect();
+            FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+            try (FramedConnection connection = new FramedConnection(client)) {
+                FFSExchange.prove(connection,
+                        new FFSPeggy(key.getN(), key.getS(), L, K, SecureRandom.getSeed(L)), ROUNDS);
+            }
+        } finally {
+            endpoint.close();
+        }
+    }
+}
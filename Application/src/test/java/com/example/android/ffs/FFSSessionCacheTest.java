@@ -0,0 +1,49 @@
+package com.example.android.ffs;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Opening and resuming sessions in {@link FFSSessionCache}. A live session
+ * must never be replaced by a prover that only knows its id.
+ */
+public class FFSSessionCacheTest {
+
+    private static final ArrayList<BigInteger> NV = new ArrayList<>(Arrays.asList(
+            BigInteger.valueOf(77), BigInteger.valueOf(4), BigInteger.valueOf(9)));
+
+    @Test
+    public void liveIdIsNotReopened() {
+        FFSSessionCache cache = new FFSSessionCache();
+        assertNotNull(cache.open(1, NV));
+        ArrayList<BigInteger> other = new ArrayList<>(NV);
+        other.set(1, BigInteger.valueOf(16));
+        assertNull(cache.open(1, other));
+        assertEquals(NV, cache.resume(1).getNV());
+    }
+
+    @Test
+    public void expiredIdIsReopened() throws InterruptedException {
+        FFSSessionCache cache = new FFSSessionCache(FFSSessionCache.DEFAULT_CAPACITY, 1);
+        assertNotNull(cache.open(1, NV));
+        Thread.sleep(5);
+        assertNotNull(cache.open(1, NV));
+    }
+
+    @Test
+    public void finishedIdIsForgotten() {
+        FFSSessionCache cache = new FFSSessionCache();
+        cache.open(1, NV);
+        cache.finish(1);
+        assertNull(cache.resume(1));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.android.ffs;
+
+import com.example.android.transport.Connection;
+import com.example.android.transport.FramedConnection;
+import com.example.android.transport.InMemoryTransport;
+import com.example.android.transport.ServerEndpoint;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Issuing and redeeming tickets in {@link FFSTicketStore}, and the ticket
+ * path of {@link FFSExchange#verify}. A ticket that was tampered with,
+ * expired, revoked or evicted must buy its holder nothing.
+ */
+public class FFSTicketStoreTest {
+
+    private static final int L = 64;
+    private static final int K = 8;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void validTicket() {
+        FFSTicketStore store = new FFSTicketStore();
+        ArrayList<BigInteger> nv = publicKey();
+        byte[] ticket = store.issue(nv);
+        assertEquals(FFSTicketStore.TICKET_LENGTH, ticket.length);
+        assertEquals(nv, store.redeem(ticket));
+        assertEquals(nv, store.redeem(ticket));
+        assertEquals(1, store.getIssued());
+        assertEquals(2, store.getHits());
+        assertEquals(0, store.getMisses());
+    }
+
+    @Test
+    public void forgedMac() {
+        FFSTicketStore store = new FFSTicketStore();
+        byte[] ticket = store.issue(publicKey());
+        ticket[ticket.length - 1] ^= 1;
+        assertNull(store.redeem(ticket));
+        assertEquals(0, store.getHits());
+        assertEquals(1, store.getMisses());
+    }
+
+    @Test
+    public void extendedExpiry() {
+        FFSTicketStore store = new FFSTicketStore();
+        byte[] ticket = store.issue(publicKey());
+        long expiry = FFSTicketStore.expiresAt(ticket);
+        ByteBuffer.wrap(ticket).putLong(16, expiry + 60 * 60 * 1000);
+        assertNull(store.redeem(ticket));
+    }
+
+    @Test
+    public void expiredTicket() {
+        // Expires the moment it is issued
+        FFSTicketStore store = new FFSTicketStore(FFSTicketStore.DEFAULT_CAPACITY, 0,
+                FFSTicketStore.DEFAULT_TICKET_ROUNDS);
+        assertNull(store.redeem(store.issue(publicKey())));
+        assertEquals(1, store.getMisses());
+    }
+
+    @Test
+    public void ticketOfAnotherStore() {
+        byte[] ticket = new FFSTicketStore().issue(publicKey());
+        assertNull(new FFSTicketStore().redeem(ticket));
+    }
+
+    @Test
+    public void revokedTicket() {
+        FFSTicketStore store = new FFSTicketStore();
+        byte[] ticket = store.issue(publicKey());
+        store.revoke(ticket);
+        assertNull(store.redeem(ticket));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        FFSTicketStore store = new FFSTicketStore(2, FFSTicketStore.DEFAULT_LIFETIME_MILLIS,
+                FFSTicketStore.DEFAULT_TICKET_ROUNDS);
+        byte[] first = store.issue(publicKey());
+        byte[] second = store.issue(publicKey());
+        assertNotNull(store.redeem(first));
+        byte[] third = store.issue(publicKey());
+        assertEquals(2, store.size());
+        assertNull(store.redeem(second));
+        assertNotNull(store.redeem(first));
+        assertNotNull(store.redeem(third));
+        assertEquals(3, store.getIssued());
+        assertEquals(3, store.getHits());
+        assertEquals(1, store.getMisses());
+    }
+
+    @Test(timeout = 30000)
+    public void fastPath() throws Exception {
+        FFSTicketStore store = new FFSTicketStore();
+        FFSPeggy peggy = peggy(FFSKey.generate(L, K, new SecureRandom()));
+        FFSSession session = new FFSSession(new SecureRandom());
+        assertTrue(identify(store, peggy, session));
+        assertNotNull(session.getTicket());
+        assertEquals(1, store.getIssued());
+
+        assertTrue(identify(store, peggy, session));
+        assertEquals(1, store.getHits());
+        // The ticket presented stays valid, no new one is issued
+        assertEquals(1, store.getIssued());
+        assertNotNull(session.getTicket());
+    }
+
+    @Test(timeout = 30000)
+    public void failedFastPathRevokes() throws Exception {
+        // Every round is a ticket round, so an impostor passing them is out of the question
+        FFSTicketStore store = new FFSTicketStore(FFSTicketStore.DEFAULT_CAPACITY,
+                FFSTicketStore.DEFAULT_LIFETIME_MILLIS, ROUNDS);
+        FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+        FFSSession session = new FFSSession(new SecureRandom());
+        assertTrue(identify(store, peggy(key), session));
+        byte[] ticket = session.getTicket();
+
+        // Somebody else presents the ticket, with the same n but not the secrets it was
+        // issued for. The squares are still units, so only the checks fail.
+        ArrayList<BigInteger> guessed = new ArrayList<>();
+        for (BigInteger s : key.getS()) {
+            guessed.add(s.multiply(s).mod(key.getN()));
+        }
+        FFSSession stolen = new FFSSession(new SecureRandom());
+        stolen.setTicket(ticket);
+        assertFalse(identify(store, new FFSPeggy(key.getN(), guessed, L, K,
+                SecureRandom.getSeed(L)), stolen));
+        assertEquals(0, store.size());
+        assertNull(store.redeem(ticket));
+    }
+
+    /**
+     * Run one identification against {@link FFSExchange#verify} with the store.
+     *
+     * @return The verdict of the verifier
+     */
+    private static boolean identify(final FFSTicketStore store, FFSPeggy peggy,
+                                    FFSSession session) throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        final ServerEndpoint endpoint = transport.listen("FFSTicketStoreTest");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> verified = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try (FramedConnection connection = new FramedConnection(endpoint.accept())) {
+                        // n is taken from the V the prover sends
+                        FFSVictor victor = new FFSVictor(BigInteger.ONE, K, SecureRandom.getSeed(32));
+                        return FFSExchange.verify(connection, victor, ROUNDS, null, null, store,
+                                null);
+                    }
+                }
+            });
+            Connection client = transport.open(endpoint.getAddress());
+            client.connect();
+            try (FramedConnection connection = new FramedConnection(client)) {
+                FFSExchange.prove(connection, peggy, ROUNDS, session, null, false);
+            }
+            return verified.get();
+        } finally {
+            endpoint.close();
+            executor.shutdownNow();
+        }
+    }
+
+    private static FFSPeggy peggy(FFSKey key) {
+        return new FFSPeggy(key.getN(), key.getS(), L, K, SecureRandom.getSeed(L));
+    }
+
+    private static ArrayList<BigInteger> publicKey() {
+        return peggy(FFSKey.generate(L, K, new SecureRandom())).getV();
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.android.ffs;
+
+import com.example.android.transport.Connection;
+import com.example.android.transport.FramedConnection;
+import com.example.android.transport.InMemoryTransport;
+import com.example.android.transport.ServerEndpoint;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Feeds {@link FFSVerifierServer} malformed messages. Every one of them has to
+ * end the session through {@link FFSVerifierServer.Listener#onSessionFailed},
+ * not kill the thread of the session. So do identities under a modulus other
+ * than the one of the trusted key center.
+ */
+public class FFSVerifierServerTest {
+
+    private static final int L = 64;
+    private static final int K = 8;
+    private static final int ROUNDS = 5;
+
+    private static final String FAILED = "failed";
+    private static final String FINISHED = "finished";
+    private static final String REJECTED = "rejected";
+
+    @Test(timeout = 30000)
+    public void truncatedNumber() throws Exception {
+        assertEquals(FAILED, verifyAfter(new byte[]{FFSCodec.TYPE_BIG_INTEGER, 0, 100, 1, 2}));
+    }
+
+    @Test(timeout = 30000)
+    public void negativeLength() throws Exception {
+        assertEquals(FAILED, verifyAfter(new byte[]{FFSCodec.TYPE_BIG_INTEGER, -1, 0, 1}));
+    }
+
+    @Test(timeout = 30000)
+    public void bareTag() throws Exception {
+        assertEquals(FAILED, verifyAfter(new byte[]{FFSCodec.TYPE_BIG_INTEGER}));
+    }
+
+    @Test(timeout = 30000)
+    public void tooFewValues() throws Exception {
+        FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+        ArrayList<BigInteger> nv = new ArrayList<>(publicKey(key).subList(0, K));
+        assertEquals(FAILED, verifyAfter(FFSCodec.toByteArray(nv)));
+    }
+
+    @Test(timeout = 30000)
+    public void zeroModulus() throws Exception {
+        FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+        ArrayList<BigInteger> nv = publicKey(key);
+        nv.set(0, BigInteger.ZERO);
+        assertEquals(FAILED, verifyAfter(FFSCodec.toByteArray(nv)));
+    }
+
+    @Test(timeout = 30000)
+    public void bareX() throws Exception {
+        FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+        assertEquals(FAILED, verifyAfter(FFSCodec.toByteArray(publicKey(key)),
+                new byte[]{FFSCodec.TYPE_BIG_INTEGER}));
+    }
+
+    @Test(timeout = 30000)
+    public void zeroXAndY() throws Exception {
+        // Without a range check y^2 * v^a = 0 = x holds in every round
+        FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+        ArrayList<byte[]> messages = new ArrayList<>();
+        messages.add(FFSCodec.toByteArray(publicKey(key)));
+        for (int i = 0; i < ROUNDS; i++) {
+            messages.add(number(BigInteger.ZERO));
+            messages.add(number(BigInteger.ZERO));
+        }
+        assertEquals(FAILED, verifyAfter(messages.toArray(new byte[0][])));
+    }
+
+    @Test(timeout = 30000)
+    public void zeroY() throws Exception {
+        FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+        assertEquals(FAILED, verifyAfter(FFSCodec.toByteArray(publicKey(key)),
+                number(BigInteger.ONE), number(BigInteger.ZERO)));
+    }
+
+    @Test(timeout = 30000)
+    public void committedZero() throws Exception {
+        FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+        assertEquals(FAILED, verifyAfter(FFSCodec.toByteArray(publicKey(key)),
+                FFSCodec.toCommitmentMessage(FFSCodec.commit(BigInteger.ZERO)),
+                number(BigInteger.ZERO)));
+    }
+
+    @Test(timeout = 30000)
+    public void xSharingFactorWithN() throws Exception {
+        FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+        assertEquals(FAILED, verifyAfter(FFSCodec.toByteArray(publicKey(key)),
+                number(key.getN())));
+    }
+
+    @Test(timeout = 30000)
+    public void validProver() throws Exception {
+        FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+        assertEquals(FINISHED, proveTo(null, key));
+    }
+
+    @Test(timeout = 60000)
+    public void identityOfTrustedCenter() throws Exception {
+        FFSKey key = FFSIdentity.generate("peggy", L, K, new SecureRandom());
+        assertEquals(FINISHED, proveTo(key.getN(), key));
+    }
+
+    @Test(timeout = 60000)
+    public void identityOfOtherCenter() throws Exception {
+        // Whoever made this key knows the factors of its n and any identity's secrets
+        FFSKey center = FFSIdentity.generate("peggy", L, K, new SecureRandom());
+        FFSKey key = FFSIdentity.generate("peggy", L, K, new SecureRandom());
+        assertEquals(FAILED, proveTo(center.getN(), key));
+    }
+
+    @Test(timeout = 60000)
+    public void identityWithoutTrustedCenter() throws Exception {
+        FFSKey key = FFSIdentity.generate("peggy", L, K, new SecureRandom());
+        assertEquals(FAILED, proveTo(null, key));
+    }
+
+    @Test(timeout = 30000)
+    public void resumeAfterDrop() throws Exception {
+        final int dropAt = 2;
+        FFSKey key = FFSKey.generate(L, K, new SecureRandom());
+        BlockingQueue<String> outcomes = new ArrayBlockingQueue<>(2);
+        // Two, the failed session may still hold its thread when the prover returns
+        FFSVerifierServer server = new FFSVerifierServer(K, ROUNDS, 2, listener(outcomes));
+        InMemoryTransport transport = new InMemoryTransport();
+        ServerEndpoint endpoint = transport.listen("FFSVerifierServer");
+        server.serve(endpoint);
+        try {
+            Connection client = transport.open(endpoint.getAddress());
+            client.connect();
+            final FramedConnection dropped = new FramedConnection(client);
+            // How often Peggy took each step: 1 is getV, 3 is getY
+            final int[] steps = new int[4];
+            FFSPeggy peggy = new FFSPeggy(key.getN(), key.getS(), L, K, SecureRandom.getSeed(L));
+            peggy.setListener(new FFSStepListener() {
+                @Override
+                public void onStep(String party, int step) {
+                    steps[step]++;
+                    if (step == 3 && steps[3] == dropAt) {
+                        try {
+                            dropped.close();
+                        } catch (IOException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                }
+            });
+            FFSSession session = new FFSSession(new SecureRandom());
+            try {
+                FFSExchange.prove(dropped, peggy, ROUNDS, session, null, false);
+                fail("The connection was dropped");
+            } catch (IOException e) {
+                // Expected, y of round dropAt never went out
+            }
+            assertEquals(FAILED, outcomes.poll(10, TimeUnit.SECONDS));
+
+            client = transport.open(endpoint.getAddress());
+            client.connect();
+            try (FramedConnection connection = new FramedConnection(client)) {
+                assertTrue(FFSExchange.prove(connection, peggy, ROUNDS, session, null, false));
+            }
+            assertEquals(FINISHED, outcomes.poll(10, TimeUnit.SECONDS));
+            assertEquals(1, server.getSessionCache().getHits());
+            // V went out once, and every round ran again after the drop
+            assertEquals(1, steps[1]);
+            assertEquals(dropAt + ROUNDS, steps[3]);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Identify with a key against a fresh server and wait for how the session ends.
+     *
+     * @param trustedN The modulus of the key center the server trusts, or null
+     */
+    private static String proveTo(BigInteger trustedN, FFSKey key) throws Exception {
+        BlockingQueue<String> outcomes = new ArrayBlockingQueue<>(1);
+        FFSVerifierServer server = new FFSVerifierServer(K, ROUNDS, 1, listener(outcomes));
+        server.setTrustedModulus(trustedN);
+        InMemoryTransport transport = new InMemoryTransport();
+        ServerEndpoint endpoint = transport.listen("FFSVerifierServer");
+        server.serve(endpoint);
+        try {
+            Connection client = transport.open(endpoint.getAddress());
+            client.connect();
+            try (FramedConnection connection = new FramedConnection(client)) {
+                FFSExchange.prove(connection,
+                        new FFSPeggy(key.getN(), key.getS(), L, K, SecureRandom.getSeed(L)),
+                        ROUNDS, null, key, false);
+            } catch (IOException e) {
+                // A rejected key ends the session, the outcome tells why
+            }
+            return outcomes.poll(10, TimeUnit.SECONDS);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Connect to a fresh server, send the messages and wait for how the session ends.
+     */
+    private static String verifyAfter(byte[]... messages) throws Exception {
+        BlockingQueue<String> outcomes = new ArrayBlockingQueue<>(1);
+        FFSVerifierServer server = new FFSVerifierServer(K, ROUNDS, 1, listener(outcomes));
+        InMemoryTransport transport = new InMemoryTransport();
+        ServerEndpoint endpoint = transport.listen("FFSVerifierServer");
+        server.serve(endpoint);
+        try {
+            Connection client = transport.open(endpoint.getAddress());
+            client.connect();
+            try (FramedConnection connection = new FramedConnection(client)) {
+                try {
+                    for (byte[] message : messages) {
+                        connection.send(message);
+                    }
+                } catch (IOException e) {
+                    // The session may end before the rest of the messages are sent
+                }
+                return outcomes.poll(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static byte[] number(BigInteger value) {
+        return FFSCodec.toByteArray(new ArrayList<>(Collections.singletonList(value)));
+    }
+
+    private static ArrayList<BigInteger> publicKey(FFSKey key) {
+        return new FFSPeggy(key.getN(), key.getS(), L, K, SecureRandom.getSeed(L)).getV();
+    }
+
+    private static FFSVerifierServer.Listener listener(final BlockingQueue<String> outcomes) {
+        return new FFSVerifierServer.Listener() {
+            @Override
+            public void onSessionStarted(int sessionId, String remoteName) {
+            }
+
+            @Override
+            public void onSessionFinished(int sessionId, String remoteName,
+                                          boolean verified, long elapsedNanos) {
+                outcomes.offer(verified ? FINISHED : REJECTED);
+            }
+
+            @Override
+            public void onSessionFailed(int sessionId, String remoteName, IOException e) {
+                outcomes.offer(FAILED);
+            }
+
+            @Override
+            public void onSessionRejected(String remoteName) {
+            }
+        };
+    }
+}
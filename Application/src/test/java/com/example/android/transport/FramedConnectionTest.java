@@ -0,0 +1,180 @@
+package com.example.android.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pushes traffic through two {@link FramedConnection}s joined by an
+ * {@link InMemoryTransport}, small windows included, to check that credit flow
+ * never stalls both ends, and that frames are counted as split only when they
+ * took more than one read.
+ */
+public class FramedConnectionTest {
+
+    private static final int FRAMES = 200000;
+    private static final int FRAME_LENGTH = 16;
+
+    @Test(timeout = 60000)
+    public void fullDuplex() throws Exception {
+        fullDuplex(FramedConnection.DEFAULT_WINDOW, FRAMES);
+    }
+
+    @Test(timeout = 60000)
+    public void fullDuplexWindowOfOne() throws Exception {
+        fullDuplex(1, FRAMES / 10);
+    }
+
+    @Test(timeout = 60000)
+    public void oneWay() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        ServerEndpoint endpoint = transport.listen("FramedConnectionTest");
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Connection client = transport.open(endpoint.getAddress());
+            client.connect();
+            final FramedConnection a = new FramedConnection(client);
+            final FramedConnection b = new FramedConnection(endpoint.accept());
+
+            Future<Integer> sent = executor.submit(sender(a, FRAMES));
+            Future<Integer> received = executor.submit(receiver(b, FRAMES));
+            assertEquals(FRAMES, (int) sent.get());
+            assertEquals(FRAMES, (int) received.get());
+            a.close();
+            b.close();
+        } finally {
+            endpoint.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void wholeFramesAreNotSplit() throws Exception {
+        WireStats stats = new WireStats();
+        InMemoryTransport transport = new InMemoryTransport();
+        ServerEndpoint endpoint = transport.listen("FramedConnectionTest");
+        try {
+            Connection client = transport.open(endpoint.getAddress());
+            client.connect();
+            FramedConnection a = new FramedConnection(new CountingConnection(client, stats));
+            FramedConnection b = new FramedConnection(endpoint.accept());
+
+            // One frame at a time, each lands in the pipe with a single write
+            for (int i = 0; i < 100; i++) {
+                b.send(new byte[FRAME_LENGTH]);
+                a.receive();
+                a.send(new byte[FRAME_LENGTH]);
+                b.receive();
+            }
+            WireStats.Snapshot snapshot = stats.snapshot();
+            assertTrue(snapshot.getReads() > 0);
+            assertEquals(0, snapshot.getSplitFrames());
+            a.close();
+            b.close();
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void largeFramesAreSplit() throws Exception {
+        WireStats stats = new WireStats();
+        InMemoryTransport transport = new InMemoryTransport();
+        ServerEndpoint endpoint = transport.listen("FramedConnectionTest");
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Connection client = transport.open(endpoint.getAddress());
+            client.connect();
+            final FramedConnection a = new FramedConnection(new CountingConnection(client, stats));
+            final FramedConnection b = new FramedConnection(endpoint.accept());
+
+            // Larger than the read buffer, so never read in one call
+            Future<?> sent = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int i = 0; i < 10; i++) {
+                        b.send(new byte[64 * 1024]);
+                    }
+                    return null;
+                }
+            });
+            for (int i = 0; i < 10; i++) {
+                a.receive();
+            }
+            sent.get();
+            assertEquals(10, stats.snapshot().getSplitFrames());
+            a.close();
+            b.close();
+        } finally {
+            endpoint.close();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Both ends send and receive at the same time, each direction on its own thread.
+     */
+    private static void fullDuplex(int window, int frames) throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        ServerEndpoint endpoint = transport.listen("FramedConnectionTest");
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Connection client = transport.open(endpoint.getAddress());
+            client.connect();
+            FramedConnection a = new FramedConnection(client, window, true);
+            FramedConnection b = new FramedConnection(endpoint.accept(), window, true);
+
+            ArrayList<Future<Integer>> results = new ArrayList<>();
+            results.add(executor.submit(sender(a, frames)));
+            results.add(executor.submit(receiver(a, frames)));
+            results.add(executor.submit(sender(b, frames)));
+            results.add(executor.submit(receiver(b, frames)));
+            for (Future<Integer> result : results) {
+                assertEquals(frames, (int) result.get(50, TimeUnit.SECONDS));
+            }
+            a.close();
+            b.close();
+        } finally {
+            endpoint.close();
+            executor.shutdownNow();
+        }
+    }
+
+    private static Callable<Integer> sender(final FramedConnection connection, final int frames) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                byte[] payload = new byte[FRAME_LENGTH];
+                for (int i = 0; i < frames; i++) {
+                    payload[0] = (byte) i;
+                    connection.send(payload);
+                }
+                return frames;
+            }
+        };
+    }
+
+    private static Callable<Integer> receiver(final FramedConnection connection, final int frames) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                for (int i = 0; i < frames; i++) {
+                    byte[] payload = connection.receive();
+                    if (payload.length != FRAME_LENGTH || payload[0] != (byte) i) {
+                        throw new IOException("Frame " + i + " out of order");
+                    }
+                }
+                return frames;
+            }
+        };
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.android.ffs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The arithmetic of one identification round, for every combination of the
+ * prime length l and the number of secrets k. Each operation is measured on
+ * its own, as it runs in {@link FFSExchange}, and as a whole round.
+ * <p>
+ * Throughput comes with sampled latencies, and the gc profiler set up in
+ * build.gradle adds the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FFSArithmeticBenchmark {
+
+    @Param({"16", "512", "1024", "2048"})
+    public int l;
+
+    @Param({"8", "32", "128"})
+    public int k;
+
+    private FFSPeggy mPeggy;
+    private FFSVictor mVictor;
+    private ArrayList<Boolean> mA;
+    private BigInteger mY;
+
+    @Setup(Level.Trial)
+    public void setUp() throws NoSuchAlgorithmException {
+        // Seeded before first use, so every run measures the same key
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(l * 1000L + k);
+        FFSKey key = FFSKey.generate(l, k, random);
+        mPeggy = new FFSPeggy(key.getN(), key.getS(), l, k, seed(1));
+        mVictor = new FFSVictor(key.getN(), k, seed(2));
+
+        // getV hands out a list it reuses, and receiveV modifies what it gets
+        mVictor.receiveV(new ArrayList<>(mPeggy.getV()));
+        mA = new ArrayList<>(mVictor.getA(mPeggy.getX()));
+        mY = mPeggy.getY(mA);
+        if (!mVictor.check(mY)) {
+            throw new IllegalStateException("Round does not verify");
+        }
+    }
+
+    @Benchmark
+    public ArrayList<BigInteger> getV() {
+        return mPeggy.getV();
+    }
+
+    @Benchmark
+    public BigInteger getX() {
+        return mPeggy.getX();
+    }
+
+    /**
+     * Answers the same challenge every time, r stays the one of the last getX.
+     */
+    @Benchmark
+    public BigInteger getY() {
+        return mPeggy.getY(mA);
+    }
+
+    /**
+     * Checks the same answer every time, for the x and challenge set up.
+     */
+    @Benchmark
+    public boolean check() {
+        return mVictor.check(mY);
+    }
+
+    /**
+     * Everything both sides compute in one round, without encoding.
+     */
+    @Benchmark
+    public boolean round() {
+        BigInteger x = mPeggy.getX();
+        ArrayList<Boolean> a = mVictor.getA(x);
+        return mVictor.check(mPeggy.getY(a));
+    }
+
+    private byte[] seed(int salt) {
+        byte[] seed = new byte[16];
+        seed[0] = (byte) salt;
+        seed[1] = (byte) k;
+        seed[2] = (byte) (l >>> 8);
+        seed[3] = (byte) l;
+        return seed;
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.android.ffs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the number and challenge messages of
+ * {@link FFSCodec}, as messages of a whole payload and as the bare arrays
+ * inside them. The gc profiler set up in build.gradle adds the bytes
+ * allocated per message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FFSCodecBenchmark {
+
+    /**
+     * A list of numbers and its encoding.
+     */
+    @State(Scope.Thread)
+    public static class Numbers {
+        // 1 is x or y, the others [n, v_1, ..., v_k] for k = 8, 32, 128
+        @Param({"1", "9", "33", "129"})
+        public int count;
+
+        // Size of n for l = 16, 512, 1024, 2048
+        @Param({"32", "1024", "2048", "4096"})
+        public int bits;
+
+        ArrayList<BigInteger> mValues;
+        byte[] mMessage;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random random = new Random(count * 10000L + bits);
+            mValues = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                mValues.add(new BigInteger(bits, random).setBit(bits - 1));
+            }
+            mMessage = FFSCodec.toByteArray(mValues);
+        }
+    }
+
+    /**
+     * A challenge of k bits and its encoding.
+     */
+    @State(Scope.Thread)
+    public static class Challenge {
+        @Param({"8", "32", "128"})
+        public int k;
+
+        ArrayList<Boolean> mValues;
+        Boolean[] mArray;
+        byte[] mMessage;
+        byte[] mBits;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random random = new Random(k);
+            mValues = new ArrayList<>(k);
+            for (int i = 0; i < k; i++) {
+                mValues.add(random.nextBoolean());
+            }
+            mArray = mValues.toArray(new Boolean[k]);
+            mMessage = FFSCodec.toBooleanMessage(mValues);
+            mBits = Arrays.copyOfRange(mMessage, 1, mMessage.length);
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeNumbers(Numbers numbers) {
+        return FFSCodec.toByteArray(numbers.mValues);
+    }
+
+    @Benchmark
+    public ArrayList<BigInteger> decodeNumbers(Numbers numbers) {
+        return FFSCodec.toBigIntegerArray(numbers.mMessage);
+    }
+
+    @Benchmark
+    public byte[] encodeChallenge(Challenge challenge) {
+        return FFSCodec.toBooleanMessage(challenge.mValues);
+    }
+
+    @Benchmark
+    public ArrayList<Boolean> decodeChallenge(Challenge challenge) {
+        return FFSCodec.fromBooleanMessage(challenge.mMessage);
+    }
+
+    @Benchmark
+    public byte[] encodeBits(Challenge challenge) {
+        return FFSCodec.toByteArray(challenge.mArray);
+    }
+
+    @Benchmark
+    public ArrayList<Boolean> decodeBits(Challenge challenge) {
+        return FFSCodec.toBooleanArray(challenge.mBits);
+    }
+}